@@ -0,0 +1,44 @@
+package net.duart.virtualstorage;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Main thread time of closing a loaded backpack with a changed page, which copies its pages for the save and
+ * leaves the navigation arrows out.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BackpackCloseBenchmark {
+
+    @Param({"1", "10", "50", "100"})
+    public int pages;
+
+    private BenchmarkServer server;
+
+    @Setup(Level.Trial)
+    public void startServer() {
+        server = new BenchmarkServer(pages, true);
+    }
+
+    @Setup(Level.Invocation)
+    public void open() {
+        server.openBackpack();
+        server.markPageChanged();
+    }
+
+    @Benchmark
+    public void close() {
+        server.closeBackpack();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() {
+        server.shutdown();
+    }
+}
@@ -0,0 +1,46 @@
+package net.duart.virtualstorage;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from {@code /backpack} to the first page being shown. Cold opens read the backpack from storage with the
+ * caches turned off, warm ones reuse the backpack that stayed loaded after the previous close.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BackpackOpenBenchmark {
+
+    @Param({"1", "10", "50", "100"})
+    public int pages;
+
+    @Param({"cold", "warm"})
+    public String cache;
+
+    private BenchmarkServer server;
+
+    @Setup(Level.Trial)
+    public void startServer() {
+        server = new BenchmarkServer(pages, cache.equals("warm"));
+    }
+
+    @Benchmark
+    public void open() {
+        server.openBackpack();
+    }
+
+    @TearDown(Level.Invocation)
+    public void close() {
+        server.closeBackpack();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() {
+        server.shutdown();
+    }
+}
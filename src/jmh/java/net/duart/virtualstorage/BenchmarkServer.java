@@ -0,0 +1,93 @@
+package net.duart.virtualstorage;
+
+import be.seeseemelk.mockbukkit.MockBukkit;
+import be.seeseemelk.mockbukkit.ServerMock;
+import be.seeseemelk.mockbukkit.entity.PlayerMock;
+import org.bukkit.Material;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.InventoryView;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.plugin.java.JavaPlugin;
+
+/**
+ * A mocked server with the plugin loaded and one player whose backpack has every other slot of every page filled.
+ * <p>
+ * Everything goes through commands, inventory events and config keys, so the benchmarks run unchanged on older
+ * commits and give the figures from before a change.
+ */
+final class BenchmarkServer {
+    private static final Material[] MATERIALS = {Material.STONE, Material.DIRT, Material.OAK_LOG, Material.DIAMOND,
+            Material.ARROW, Material.BREAD, Material.IRON_INGOT, Material.COBBLESTONE};
+    private static final int INVENTORY_SIZE = 54;
+    private static final int NEXT_ARROW_SLOT = 53;
+    private static final int CONTENT_SLOTS = 45;
+
+    private final ServerMock server;
+    private final PlayerMock player;
+
+    /**
+     * @param cached whether closed backpacks stay in memory; without the caches every open reads from storage
+     */
+    BenchmarkServer(int pages, boolean cached) {
+        server = MockBukkit.mock();
+        JavaPlugin plugin = server.getPluginManager().loadPlugin(VirtualStorages.class, new Object[0]);
+        if (!cached) {
+            plugin.getConfig().set("cache.hot.max-backpacks", 0);
+            plugin.getConfig().set("cache.warm.max-megabytes", 0);
+        }
+        server.getPluginManager().enablePlugin(plugin);
+        player = server.addPlayer();
+        player.addAttachment(plugin, "virtualstorages.use." + pages, true);
+
+        openBackpack();
+        for (int page = 0; page < pages; page++) {
+            Inventory inventory = player.getOpenInventory().getTopInventory();
+            for (int slot = 0; slot < CONTENT_SLOTS; slot += 2) {
+                inventory.setItem(slot, new ItemStack(MATERIALS[(page + slot) % MATERIALS.length], 1 + slot % 16));
+            }
+            markPageChanged();
+            if (page < pages - 1) {
+                InventoryView view = player.getOpenInventory();
+                player.simulateInventoryClick(view, NEXT_ARROW_SLOT);
+                server.getScheduler().performOneTick();
+            }
+        }
+        closeBackpack();
+    }
+
+    /**
+     * Runs {@code /backpack} and waits until the backpack is shown, ticking the scheduler while it loads.
+     */
+    void openBackpack() {
+        player.performCommand("backpack");
+        for (int i = 0; i < 10_000 && !isBackpackOpen(); i++) {
+            server.getScheduler().performOneTick();
+            Thread.onSpinWait();
+        }
+        if (!isBackpackOpen()) throw new IllegalStateException("The backpack did not open");
+    }
+
+    /**
+     * Clicks a content slot of the shown page so the listener marks it changed and the next close saves it. The
+     * mocked click fires the event without moving the item.
+     */
+    void markPageChanged() {
+        player.simulateInventoryClick(player.getOpenInventory(), 0);
+    }
+
+    /**
+     * Closes the backpack and runs the tick that saves it.
+     */
+    void closeBackpack() {
+        player.closeInventory();
+        server.getScheduler().performOneTick();
+    }
+
+    void shutdown() {
+        MockBukkit.unmock();
+    }
+
+    private boolean isBackpackOpen() {
+        return player.getOpenInventory().getTopInventory().getSize() == INVENTORY_SIZE;
+    }
+}
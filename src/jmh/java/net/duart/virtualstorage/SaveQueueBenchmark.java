@@ -0,0 +1,83 @@
+package net.duart.virtualstorage;
+
+import be.seeseemelk.mockbukkit.MockBukkit;
+import be.seeseemelk.mockbukkit.MockPlugin;
+import net.duart.virtualstorage.util.BackpackSnapshot;
+import net.duart.virtualstorage.util.FileHandlers;
+import net.duart.virtualstorage.util.SaveQueue;
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full backpack saves per second through the save queue into the file backend, as a burst of {@value #SAVES}
+ * backpacks closing together. The backend syncs every file, so the result depends on the disk under
+ * {@code java.io.tmpdir}.
+ * <p>
+ * Only public constructors and methods are used, so the same class runs on older commits; before group commit
+ * existed the {@code groupCommit} setting has no effect.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SaveQueueBenchmark {
+    private static final int SAVES = 256;
+    private static final int PAGES = 3;
+
+    @Param({"true", "false"})
+    public boolean groupCommit;
+
+    private FileHandlers storage;
+    private SaveQueue saveQueue;
+    private List<BackpackSnapshot> snapshots;
+
+    @Setup(Level.Trial)
+    public void startServer() {
+        MockBukkit.mock();
+        MockPlugin plugin = MockBukkit.createMockPlugin();
+        plugin.getConfig().set("storage.group-commit.enabled", groupCommit);
+
+        storage = new FileHandlers(plugin);
+        saveQueue = new SaveQueue(plugin, storage);
+
+        BitSet allPages = new BitSet();
+        allPages.set(0, PAGES);
+        snapshots = new ArrayList<>(SAVES);
+        for (int i = 0; i < SAVES; i++) {
+            List<ItemStack[]> pages = new ArrayList<>(PAGES);
+            for (int page = 0; page < PAGES; page++) {
+                ItemStack[] contents = new ItemStack[54];
+                for (int slot = 0; slot < 45; slot += 3) {
+                    contents[slot] = new ItemStack(Material.STONE, 1 + (i + slot) % 64);
+                }
+                pages.add(contents);
+            }
+            snapshots.add(new BackpackSnapshot(new UUID(0, i), "Player" + i, pages, allPages));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAVES)
+    public void saveBurst() {
+        for (BackpackSnapshot snapshot : snapshots) {
+            saveQueue.enqueue(snapshot);
+        }
+        if (!saveQueue.flush(60, TimeUnit.SECONDS)) throw new IllegalStateException("Saves did not finish");
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() {
+        saveQueue.shutdown(60, TimeUnit.SECONDS);
+        storage.shutdown();
+        MockBukkit.unmock();
+    }
+}
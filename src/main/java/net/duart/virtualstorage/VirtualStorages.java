@@ -1,14 +1,32 @@
 package net.duart.virtualstorage;
 
 import net.duart.virtualstorage.commands.CommandManager;
+import net.duart.virtualstorage.listener.PermissionTiers;
 import net.duart.virtualstorage.listener.VirtualBackpack;
+import net.duart.virtualstorage.util.BackpackCodec;
+import net.duart.virtualstorage.util.BackpackData;
+import net.duart.virtualstorage.util.BackpackSnapshot;
+import net.duart.virtualstorage.util.BackupEngine;
+import net.duart.virtualstorage.util.BackupSource;
+import net.duart.virtualstorage.util.CompressionDictionary;
+import net.duart.virtualstorage.util.DictionaryTrainer;
 import net.duart.virtualstorage.util.FileHandlers;
 import net.duart.virtualstorage.util.Messages;
+import net.duart.virtualstorage.util.RegionStorageBackend;
+import net.duart.virtualstorage.util.SaveQueue;
+import net.duart.virtualstorage.util.SqliteStorageBackend;
+import net.duart.virtualstorage.util.StorageBackend;
 import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
 import org.bukkit.command.PluginCommand;
 import org.bukkit.plugin.java.JavaPlugin;
 import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.zip.Deflater;
 
 import org.bukkit.command.ConsoleCommandSender;
 
@@ -16,6 +34,13 @@ public final class VirtualStorages extends JavaPlugin {
 
     public static ConsoleCommandSender cCSender;
     private VirtualBackpack virtualBackpack;
+    private PermissionTiers permissionTiers;
+    private SaveQueue saveQueue;
+    private StorageBackend storage;
+    private BackupEngine backupEngine;
+
+    private static final int DICTIONARY_SAMPLES = 256;
+    private static final long DICTIONARY_SAMPLE_BYTES = 1024 * 1024;
 
     @Override
     public void onEnable() {
@@ -23,12 +48,21 @@ public final class VirtualStorages extends JavaPlugin {
         saveDefaultConfig();
 
         Messages.init(getConfig());
+        BackpackCodec.init(getConfig(), getDataFolder());
 
-        FileHandlers fileHandlers = new FileHandlers(this);
-        virtualBackpack = new VirtualBackpack(this, fileHandlers);
+        storage = createStorageBackend();
+        saveQueue = new SaveQueue(this, storage);
+        permissionTiers = new PermissionTiers(this);
+        virtualBackpack = new VirtualBackpack(this, storage, saveQueue, permissionTiers);
+        backupEngine = new BackupEngine(this);
+
+        long backupInterval = getConfig().getLong("backup.interval-minutes", 60) * 60 * 20;
+        if (backupInterval > 0) {
+            getServer().getScheduler().runTaskTimerAsynchronously(this, this::createBackup, backupInterval, backupInterval);
+        }
         CommandManager commandManager = new CommandManager(virtualBackpack, this);
 
-        List<String> commands = Arrays.asList("backpack", "vsreload" , "backpackview");
+        List<String> commands = Arrays.asList("backpack", "vsreload" , "backpackview", "vsdictionary", "vsstats");
 
         commands.forEach(command -> {
             PluginCommand cmd = Objects.requireNonNull(getCommand(command));
@@ -37,6 +71,7 @@ public final class VirtualStorages extends JavaPlugin {
         });
 
         getServer().getPluginManager().registerEvents(virtualBackpack, this);
+        getServer().getPluginManager().registerEvents(permissionTiers, this);
 
         File dataFolder = getDataFolder();
         if (!dataFolder.exists()) {
@@ -54,9 +89,99 @@ public final class VirtualStorages extends JavaPlugin {
         cCSender.sendMessage(ChatColor.YELLOW + "||  Enabled correctly  ||");
     }
 
+    private StorageBackend createStorageBackend() {
+        FileHandlers fileHandlers = new FileHandlers(this);
+        String backend = getConfig().getString("storage.backend", "file");
+
+        if (backend.equalsIgnoreCase("sqlite")) {
+            try {
+                StorageBackend sqlite = new SqliteStorageBackend(this, fileHandlers);
+                getLogger().info("Using SQLite backpack storage.");
+                return sqlite;
+            } catch (SQLException e) {
+                getLogger().log(Level.SEVERE, "Could not open the SQLite database, falling back to file storage", e);
+            }
+        } else if (backend.equalsIgnoreCase("region")) {
+            try {
+                StorageBackend region = new RegionStorageBackend(this, fileHandlers);
+                getLogger().info("Using region file backpack storage.");
+                return region;
+            } catch (IOException e) {
+                getLogger().log(Level.SEVERE, "Could not open the region files, falling back to file storage", e);
+            }
+        }
+        return fileHandlers;
+    }
+
+    private void createBackup() {
+        List<BackupSource> sources = new ArrayList<>(storage.getBackupSources());
+        sources.addAll(CompressionDictionary.getBackupSources());
+        backupEngine.run(sources);
+    }
+
+    /**
+     * Trains a new compression dictionary from a sample of stored backpacks and reports the size ratio to the sender.
+     */
+    public void rebuildCompressionDictionary(CommandSender sender) {
+        getServer().getScheduler().runTaskAsynchronously(this, () -> {
+            List<byte[]> samples = new ArrayList<>();
+            long[] sampledBytes = new long[1];
+            storage.sampleBackpacks((playerId, stored) -> {
+                // A save still waiting in the queue is newer than the stored copy
+                BackpackSnapshot pending = saveQueue.getPending(playerId);
+                BackpackData data = pending != null ? pending.toBackpackData() : stored;
+                try {
+                    byte[] body = BackpackCodec.encodeBody(data.toPageContents());
+                    if (body.length > 0) {
+                        samples.add(body);
+                        sampledBytes[0] += body.length;
+                    }
+                } catch (IOException e) {
+                    getLogger().log(Level.WARNING, "Skipping backpack of " + playerId + " for the dictionary sample", e);
+                }
+                return samples.size() < DICTIONARY_SAMPLES && sampledBytes[0] < DICTIONARY_SAMPLE_BYTES;
+            });
+
+            String message;
+            if (samples.size() < 2) {
+                message = ChatColor.RED + "Not enough stored backpacks to build a dictionary.";
+            } else {
+                int level = getConfig().getInt("storage.compression.level", Deflater.DEFAULT_COMPRESSION);
+                DictionaryTrainer.Result result = DictionaryTrainer.train(samples, level);
+                if (result.dictionary().length == 0) {
+                    message = ChatColor.RED + "The sampled backpacks have too little in common to build a dictionary.";
+                } else {
+                    try {
+                        int id = CompressionDictionary.install(result.dictionary());
+                        message = ChatColor.GREEN + "Dictionary " + id + " built from " + result.samples() + " backpacks ("
+                                + result.dictionary().length / 1024 + " KiB). Test sample: "
+                                + result.rawBytes() / 1024 + " KiB raw, deflate " + percent(result.deflatedBytes(), result.rawBytes())
+                                + ", with dictionary " + percent(result.dictionaryBytes(), result.rawBytes()) + " of raw size.";
+                        if (!getConfig().getBoolean("storage.compression.dictionary", false)) {
+                            message += ChatColor.YELLOW + " Set storage.compression.dictionary to true to use it.";
+                        }
+                    } catch (IOException e) {
+                        getLogger().log(Level.SEVERE, "Error saving compression dictionary", e);
+                        message = ChatColor.RED + "Could not save the dictionary, see the console.";
+                    }
+                }
+            }
+
+            String reply = message;
+            getServer().getScheduler().runTask(this, () -> sender.sendMessage(reply));
+        });
+    }
+
+    private static String percent(long part, long whole) {
+        return String.format(Locale.ROOT, "%.1f%%", whole == 0 ? 0.0 : 100.0 * part / whole);
+    }
+
     public void reloadLanguage() {
         reloadConfig();
         Messages.init(getConfig());
+        BackpackCodec.init(getConfig(), getDataFolder());
+        permissionTiers.invalidateAll();
+        virtualBackpack.reloadNavigationItems();
     }
 
     @Override
@@ -64,8 +189,10 @@ public final class VirtualStorages extends JavaPlugin {
         if (virtualBackpack != null) {
             try {
                 virtualBackpack.saveAllBackpacks();
-                virtualBackpack.createBackup();
                 virtualBackpack.unloadAllBackpacks();
+                saveQueue.shutdown(30, TimeUnit.SECONDS);
+                createBackup();
+                storage.shutdown();
                 getLogger().info("All backpacks saved and unloaded successfully");
             } catch (Exception e) {
                 getLogger().severe("Error during shutdown: " + e.getMessage());
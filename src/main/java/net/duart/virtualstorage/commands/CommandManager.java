@@ -2,7 +2,10 @@ package net.duart.virtualstorage.commands;
 
 import net.duart.virtualstorage.VirtualStorages;
 import net.duart.virtualstorage.listener.VirtualBackpack;
+import net.duart.virtualstorage.util.AutosaveScheduler;
+import net.duart.virtualstorage.util.BackpackCache;
 import net.duart.virtualstorage.util.Messages;
+import net.duart.virtualstorage.util.PrefetchCache;
 import net.md_5.bungee.api.ChatColor;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
@@ -32,14 +35,21 @@ public class CommandManager implements CommandExecutor, TabCompleter {
                 return true;
             }
 
-            for (int i = 1; i <= 999; i++) {
-                if (player.hasPermission("virtualstorages.use." + i)) {
-                    virtualBackpack.openBackpack(player);
+            if (!virtualBackpack.getPermissionTiers().canUseBackpack(player)) {
+                player.sendMessage(Messages.get("noPermission"));
+                return true;
+            }
+
+            if (args.length > 0 && args[0].equalsIgnoreCase("search")) {
+                if (args.length == 1) {
+                    player.sendMessage(ChatColor.RED + "Usage: /backpack search <item>");
                     return true;
                 }
+                virtualBackpack.searchBackpack(player, String.join(" ", List.of(args).subList(1, args.length)));
+                return true;
             }
 
-            player.sendMessage(Messages.get("noPermission"));
+            virtualBackpack.openBackpack(player);
             return true;
         }
 
@@ -79,14 +89,76 @@ public class CommandManager implements CommandExecutor, TabCompleter {
             return true;
         }
 
+        if (command.getName().equalsIgnoreCase("vsdictionary")) {
+            if (!sender.hasPermission("virtualstorages.admin")) {
+                sender.sendMessage(Messages.get("noCommandPermission"));
+                return true;
+            }
+            sender.sendMessage(ChatColor.YELLOW + "Sampling stored backpacks to build a compression dictionary...");
+            virtualStorages.rebuildCompressionDictionary(sender);
+            return true;
+        }
+
+        if (command.getName().equalsIgnoreCase("vsstats")) {
+            if (!sender.hasPermission("virtualstorages.admin")) {
+                sender.sendMessage(Messages.get("noCommandPermission"));
+                return true;
+            }
+            sendStats(sender);
+            return true;
+        }
+
         return false;
     }
 
+    private void sendStats(@Nonnull CommandSender sender) {
+        PrefetchCache prefetch = virtualBackpack.getPrefetchCache();
+        if (!prefetch.isEnabled()) {
+            sender.sendMessage(ChatColor.GOLD + "Login prefetch: " + ChatColor.GRAY + "disabled");
+        } else {
+            long hits = prefetch.getHits();
+            sender.sendMessage(ChatColor.GOLD + "Login prefetch: " + ChatColor.WHITE + prefetch.size() + " cached, "
+                    + prefetch.getPrefetched() + " loaded in " + String.format("%.2f", prefetch.getAveragePrefetchMillis()) + " ms avg");
+            sender.sendMessage(ChatColor.GOLD + "  First opens: " + ChatColor.WHITE + hits + " hits, " + prefetch.getMisses()
+                    + " misses (" + prefetch.getExpired() + " expired), hit rate " + hitRate(hits, prefetch.getMisses()));
+        }
+
+        BackpackCache cache = virtualBackpack.getBackpackCache();
+        sender.sendMessage(ChatColor.GOLD + "Hot cache: " + ChatColor.WHITE + cache.getHotSize() + " idle backpacks, "
+                + cache.getHotHits() + " reopened, " + cache.getHotEvictions() + " evicted");
+        sender.sendMessage(ChatColor.GOLD + "Warm cache: " + ChatColor.WHITE + cache.getWarmSize() + " backpacks in "
+                + cache.getWarmBytes() / 1024 + " KiB, " + cache.getWarmHits() + " hits, " + cache.getWarmMisses()
+                + " misses, hit rate " + hitRate(cache.getWarmHits(), cache.getWarmMisses()) + ", "
+                + cache.getWarmEvictions() + " evicted");
+
+        AutosaveScheduler autosave = virtualBackpack.getAutosaveScheduler();
+        AutosaveScheduler.CycleStats cycle = autosave.getLastCycle();
+        if (!autosave.isEnabled()) {
+            sender.sendMessage(ChatColor.GOLD + "Autosave: " + ChatColor.GRAY + "disabled");
+        } else if (cycle == null) {
+            sender.sendMessage(ChatColor.GOLD + "Autosave: " + ChatColor.WHITE + "no cycle finished yet");
+        } else {
+            sender.sendMessage(ChatColor.GOLD + "Autosave: " + ChatColor.WHITE + "last cycle saved " + cycle.saved()
+                    + " backpacks over " + cycle.ticks() + " ticks (" + cycle.durationMillis() + " ms), main thread "
+                    + String.format("%.2f ms total, %.2f ms worst tick", cycle.busyMillis(), cycle.maxTickMillis())
+                    + (autosave.getBacklog() > 0 ? ", " + autosave.getBacklog() + " in progress" : ""));
+        }
+    }
+
+    @Nonnull private static String hitRate(long hits, long misses) {
+        return hits + misses == 0 ? "-" : String.format("%.1f%%", hits * 100.0 / (hits + misses));
+    }
+
     @Override
     public List<String> onTabComplete(@Nonnull CommandSender sender, @Nonnull Command command, @Nonnull String alias, @Nonnull String[] args) {
 
         List<String> completions = new ArrayList<>();
 
+        if (command.getName().equalsIgnoreCase("backpack") && args.length == 1 && "search".startsWith(args[0].toLowerCase())) {
+            completions.add("search");
+            return completions;
+        }
+
         if (command.getName().equalsIgnoreCase("backpackview") &&
                 sender.hasPermission("virtualstorages.admin") &&
                 args.length == 1) {
@@ -0,0 +1,62 @@
+package net.duart.virtualstorage.listener;
+
+import org.bukkit.Bukkit;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.InventoryHolder;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Holder of every backpack page, so events can recognise a page and find its session and position without lookups.
+ * When pages are turned in place the holder moves along with the inventory to the page it shows.
+ */
+public final class BackpackHolder implements InventoryHolder {
+    private final BackpackSession session;
+    private int pageIndex;
+    private Inventory inventory;
+
+    private BackpackHolder(BackpackSession session, int pageIndex) {
+        this.session = session;
+        this.pageIndex = pageIndex;
+    }
+
+    /**
+     * Creates an empty inventory for the page at {@code pageIndex} of a session.
+     */
+    @Nonnull static Inventory createPage(@Nonnull BackpackSession session, int pageIndex, int size, @Nonnull String title) {
+        BackpackHolder holder = new BackpackHolder(session, pageIndex);
+        holder.inventory = Bukkit.createInventory(holder, size, title);
+        return holder.inventory;
+    }
+
+    @Nonnull public UUID getOwnerId() {
+        return session.getOwnerId();
+    }
+
+    public int getPageIndex() {
+        return pageIndex;
+    }
+
+    void setPageIndex(int pageIndex) {
+        this.pageIndex = pageIndex;
+    }
+
+    @Nonnull BackpackSession getSession() {
+        return session;
+    }
+
+    /**
+     * Whether this inventory still shows its page, pages let go of their inventory when nobody views them.
+     */
+    public boolean isCurrent() {
+        List<BackpackPage> pages = session.getPages();
+        return pageIndex < pages.size() && pages.get(pageIndex).getInventory() == inventory;
+    }
+
+    @Override
+    @Nonnull public Inventory getInventory() {
+        return inventory;
+    }
+}
@@ -0,0 +1,181 @@
+package net.duart.virtualstorage.listener;
+
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * One page of a backpack. Pages are kept as a plain slot array and only get a Bukkit inventory while someone is
+ * looking at them, so a large backpack costs as many inventories as pages being viewed.
+ * <p>
+ * While an inventory is attached it holds the contents and the array is dropped. A bitmap of the empty slots is
+ * kept alongside, exact for changes made through this class and recomputed after {@link #markChanged()} for changes
+ * made by players in the attached inventory. Navigation arrows are known by position, players cannot move them, so
+ * copies for saving never have to look at item meta. Main thread only.
+ */
+final class BackpackPage {
+    private final int size;
+    @Nullable private ItemStack[] contents;
+    @Nullable private Inventory inventory;
+
+    private long freeSlots;
+    private boolean freeSlotsStale;
+    private long arrowSlots;
+    private int modCount;
+
+    BackpackPage(int size) {
+        this(new ItemStack[size]);
+    }
+
+    /**
+     * Creates a page that takes ownership of the given slots.
+     */
+    BackpackPage(@Nonnull ItemStack[] contents) {
+        if (contents.length > Long.SIZE) {
+            throw new IllegalArgumentException("Pages are limited to " + Long.SIZE + " slots, got " + contents.length);
+        }
+        this.size = contents.length;
+        this.contents = contents;
+        this.freeSlots = computeFreeSlots();
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    @Nullable ItemStack getItem(int slot) {
+        return inventory != null ? inventory.getItem(slot) : contents[slot];
+    }
+
+    void setItem(int slot, @Nullable ItemStack item) {
+        modCount++;
+        arrowSlots &= ~(1L << slot);
+        if (inventory != null) {
+            inventory.setItem(slot, item);
+        } else {
+            contents[slot] = item;
+        }
+
+        if (isEmpty(item)) {
+            freeSlots |= 1L << slot;
+        } else {
+            freeSlots &= ~(1L << slot);
+        }
+    }
+
+    /**
+     * Returns a copy of the slots. The items themselves are not copied.
+     */
+    @Nonnull ItemStack[] getContents() {
+        return inventory != null ? inventory.getContents() : contents.clone();
+    }
+
+    /**
+     * Returns a copy of the slots with the navigation arrows left out. The items themselves are not copied.
+     */
+    @Nonnull ItemStack[] getItems() {
+        ItemStack[] items = getContents();
+        for (long arrows = arrowSlots; arrows != 0; arrows &= arrows - 1) {
+            items[Long.numberOfTrailingZeros(arrows)] = null;
+        }
+        return items;
+    }
+
+    /* NAVIGATION */
+
+    /**
+     * Puts a navigation arrow into a slot. {@code arrow} is a shared template that must not be modified.
+     */
+    void setArrow(int slot, @Nonnull ItemStack arrow) {
+        setItem(slot, arrow);
+        arrowSlots |= 1L << slot;
+    }
+
+    boolean isArrowSlot(int slot) {
+        return (arrowSlots & 1L << slot) != 0;
+    }
+
+    /* FREE SLOTS */
+
+    /**
+     * Returns a bitmap with bit {@code n} set when slot {@code n} is empty.
+     */
+    long getFreeSlots() {
+        if (freeSlotsStale) {
+            freeSlots = computeFreeSlots();
+            freeSlotsStale = false;
+        }
+        return freeSlots;
+    }
+
+    /**
+     * Records that a player is changing the attached inventory, the bitmap is rebuilt the next time it is needed.
+     */
+    void markChanged() {
+        freeSlotsStale = true;
+        modCount++;
+    }
+
+    /**
+     * Returns a counter that changes whenever the contents may have changed, so indexes know when to look again.
+     */
+    int getModCount() {
+        return modCount;
+    }
+
+    /**
+     * Puts {@code items} from index {@code from} on into the empty slots allowed by {@code slotMask}, lowest slot
+     * first, and returns the index of the first item that did not fit.
+     */
+    int fill(@Nonnull List<ItemStack> items, int from, long slotMask) {
+        long free = getFreeSlots() & slotMask;
+        while (free != 0 && from < items.size()) {
+            setItem(Long.numberOfTrailingZeros(free), items.get(from++));
+            free &= free - 1;
+        }
+        return from;
+    }
+
+    private long computeFreeSlots() {
+        long free = 0;
+        for (int slot = 0; slot < size; slot++) {
+            if (isEmpty(getItem(slot))) free |= 1L << slot;
+        }
+        return free;
+    }
+
+    private static boolean isEmpty(@Nullable ItemStack item) {
+        return item == null || item.getType().isAir();
+    }
+
+    /* MATERIALIZATION */
+
+    @Nullable Inventory getInventory() {
+        return inventory;
+    }
+
+    /**
+     * Moves the contents into an inventory that represents this page from now on, replacing whatever it held.
+     */
+    void attach(@Nonnull Inventory inventory) {
+        inventory.setContents(contents);
+        this.inventory = inventory;
+        this.contents = null;
+    }
+
+    /**
+     * Moves the contents back out of the attached inventory, which no longer belongs to this page afterwards.
+     */
+    void release() {
+        if (inventory == null) return;
+
+        contents = inventory.getContents();
+        inventory = null;
+        freeSlots = computeFreeSlots();
+        freeSlotsStale = false;
+        modCount++;
+    }
+}
@@ -0,0 +1,163 @@
+package net.duart.virtualstorage.listener;
+
+import org.bukkit.inventory.ItemStack;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.UUID;
+
+/**
+ * One loaded backpack: its pages, the page being shown, the player looking at it and the pages changed since the
+ * last save.
+ * <p>
+ * A session is confined to the main thread and is never shared with other threads. Loads and saves run
+ * asynchronously on copies, {@link net.duart.virtualstorage.util.BackpackData} coming in and
+ * {@link net.duart.virtualstorage.util.BackpackSnapshot} going out, and load results are applied on the main thread
+ * only if the session is still the owner's current one.
+ */
+final class BackpackSession {
+    private final UUID ownerId;
+    private final ArrayList<BackpackPage> pages = new ArrayList<>();
+    private final BitSet dirtyPages = new BitSet();
+    private final MaterialIndex materialIndex = new MaterialIndex();
+
+    private int currentPage;
+    private int firstPageWithSpace;
+    @Nullable private UUID viewerId;
+    private boolean adminView;
+    private boolean loaded;
+
+    BackpackSession(@Nonnull UUID ownerId) {
+        this.ownerId = ownerId;
+    }
+
+    @Nonnull UUID getOwnerId() {
+        return ownerId;
+    }
+
+    @Nonnull ArrayList<BackpackPage> getPages() {
+        return pages;
+    }
+
+    /**
+     * Returns every page to its compact form, once nobody is looking at them.
+     */
+    void releasePages() {
+        for (BackpackPage page : pages) {
+            page.release();
+        }
+    }
+
+    /**
+     * Whether the pages hold the stored contents. A session is opened before its data arrives.
+     */
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    void markLoaded() {
+        loaded = true;
+    }
+
+    /* PLACEMENT */
+
+    /**
+     * Puts items into the empty slots allowed by {@code slotMask}, starting at the first page known to have space,
+     * and returns the items that did not fit. Pages before that one are full, so each item costs about the same
+     * no matter how many pages are full.
+     */
+    @Nonnull List<ItemStack> placeItems(@Nonnull List<ItemStack> items, long slotMask) {
+        int next = 0;
+        firstPageWithSpace = Math.min(firstPageWithSpace, pages.size());
+        while (next < items.size() && firstPageWithSpace < pages.size()) {
+            next = pages.get(firstPageWithSpace).fill(items, next, slotMask);
+            if (next < items.size()) firstPageWithSpace++;
+        }
+        return new ArrayList<>(items.subList(next, items.size()));
+    }
+
+    /**
+     * Records that a page may have gained empty slots, because a player took items out of it or the pages were
+     * replaced.
+     */
+    void noteFreeSpace(int pageIndex) {
+        firstPageWithSpace = Math.min(firstPageWithSpace, pageIndex);
+    }
+
+    /* SEARCH */
+
+    /**
+     * Returns the slots of every page holding an item whose material name contains {@code query}, by page index.
+     * Only the pages changed since the last search are looked at again.
+     */
+    @Nonnull SortedMap<Integer, Long> search(@Nonnull String query) {
+        materialIndex.update(pages);
+        return materialIndex.find(query);
+    }
+
+    /* VIEWER */
+
+    void open(@Nonnull UUID viewerId, boolean adminView) {
+        this.viewerId = viewerId;
+        this.adminView = adminView;
+        this.currentPage = 0;
+    }
+
+    void close() {
+        viewerId = null;
+        adminView = false;
+        currentPage = 0;
+    }
+
+    boolean isOpen() {
+        return viewerId != null;
+    }
+
+    boolean isViewer(@Nonnull UUID playerId) {
+        return playerId.equals(viewerId);
+    }
+
+    /**
+     * Whether the backpack is open in an admin view, whose pages past the owner's limit show the overflow.
+     */
+    boolean isAdminView() {
+        return adminView;
+    }
+
+    int getCurrentPage() {
+        return currentPage;
+    }
+
+    void setCurrentPage(int currentPage) {
+        this.currentPage = currentPage;
+    }
+
+    /* DIRTY PAGES */
+
+    void markDirty(int pageIndex) {
+        dirtyPages.set(pageIndex);
+    }
+
+    void markAllDirty() {
+        dirtyPages.set(0, Math.max(pages.size(), 1));
+    }
+
+    boolean isDirty() {
+        return !dirtyPages.isEmpty();
+    }
+
+    /**
+     * Returns the pages changed since the last call and clears them, or null if nothing changed.
+     */
+    @Nullable BitSet takeDirty() {
+        if (dirtyPages.isEmpty()) return null;
+
+        BitSet dirty = (BitSet) dirtyPages.clone();
+        dirtyPages.clear();
+        return dirty;
+    }
+}
@@ -0,0 +1,90 @@
+package net.duart.virtualstorage.listener;
+
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+
+import javax.annotation.Nonnull;
+import java.util.*;
+
+/**
+ * Index from material to the pages and slots holding it, for one backpack. Each page is indexed together with the
+ * modification count it had, so an update only reads the pages that were replaced or changed since the last one.
+ * Navigation arrows are left out. Main thread only.
+ */
+final class MaterialIndex {
+    private final List<IndexedPage> indexedPages = new ArrayList<>();
+    private final Map<Material, BitSet> pagesByMaterial = new HashMap<>();
+
+    private record IndexedPage(BackpackPage page, int modCount, Map<Material, Long> slots) { }
+
+    /**
+     * Brings the index up to date with {@code pages}.
+     */
+    void update(@Nonnull List<BackpackPage> pages) {
+        while (indexedPages.size() > pages.size()) {
+            int pageIndex = indexedPages.size() - 1;
+            unindex(pageIndex, indexedPages.remove(pageIndex));
+        }
+
+        for (int pageIndex = 0; pageIndex < pages.size(); pageIndex++) {
+            BackpackPage page = pages.get(pageIndex);
+            IndexedPage indexed = pageIndex < indexedPages.size() ? indexedPages.get(pageIndex) : null;
+            if (indexed != null && indexed.page() == page && indexed.modCount() == page.getModCount()) continue;
+
+            if (indexed != null) unindex(pageIndex, indexed);
+            IndexedPage rebuilt = index(pageIndex, page);
+            if (indexed != null) {
+                indexedPages.set(pageIndex, rebuilt);
+            } else {
+                indexedPages.add(rebuilt);
+            }
+        }
+    }
+
+    /**
+     * Returns the slots holding a material whose name contains {@code query}, by page index. Spaces in the query
+     * match underscores and a {@code minecraft:} prefix is ignored.
+     */
+    @Nonnull SortedMap<Integer, Long> find(@Nonnull String query) {
+        String name = query.trim().toUpperCase(Locale.ROOT).replace(' ', '_');
+        if (name.startsWith("MINECRAFT:")) name = name.substring("MINECRAFT:".length());
+
+        SortedMap<Integer, Long> matches = new TreeMap<>();
+        if (name.isEmpty()) return matches;
+
+        for (Map.Entry<Material, BitSet> entry : pagesByMaterial.entrySet()) {
+            if (!entry.getKey().name().contains(name)) continue;
+
+            BitSet pages = entry.getValue();
+            for (int pageIndex = pages.nextSetBit(0); pageIndex >= 0; pageIndex = pages.nextSetBit(pageIndex + 1)) {
+                long slots = indexedPages.get(pageIndex).slots().get(entry.getKey());
+                matches.merge(pageIndex, slots, (a, b) -> a | b);
+            }
+        }
+        return matches;
+    }
+
+    @Nonnull private IndexedPage index(int pageIndex, @Nonnull BackpackPage page) {
+        int modCount = page.getModCount();
+        Map<Material, Long> slots = new HashMap<>();
+        ItemStack[] items = page.getItems();
+        for (int slot = 0; slot < items.length; slot++) {
+            ItemStack item = items[slot];
+            if (item == null || item.getType().isAir()) continue;
+            slots.merge(item.getType(), 1L << slot, (a, b) -> a | b);
+        }
+
+        for (Material material : slots.keySet()) {
+            pagesByMaterial.computeIfAbsent(material, k -> new BitSet()).set(pageIndex);
+        }
+        return new IndexedPage(page, modCount, slots);
+    }
+
+    private void unindex(int pageIndex, @Nonnull IndexedPage indexed) {
+        for (Material material : indexed.slots().keySet()) {
+            BitSet pages = pagesByMaterial.get(material);
+            pages.clear(pageIndex);
+            if (pages.isEmpty()) pagesByMaterial.remove(material);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package net.duart.virtualstorage.listener;
+
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.permissions.PermissionAttachmentInfo;
+import org.bukkit.plugin.Plugin;
+
+import javax.annotation.Nonnull;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the number of backpack pages each player may use, taken from the highest {@code virtualstorages.use.<n>}.
+ * <p>
+ * The tier is found by scanning the player's effective permissions once. Permission plugins that only resolve
+ * wildcards inside {@code hasPermission} get a one-off probe of every tier instead. Cached tiers are dropped on join,
+ * world change, {@code /vsreload} and every {@code permissions.refresh-seconds}.
+ */
+public class PermissionTiers implements Listener {
+    private final ConcurrentHashMap<UUID, Integer> tiers = new ConcurrentHashMap<>();
+
+    public static final String PREFIX = "virtualstorages.use.";
+    public static final int MAX_TIER = 999;
+
+    public PermissionTiers(@Nonnull Plugin plugin) {
+        long refreshTicks = plugin.getConfig().getLong("permissions.refresh-seconds", 60) * 20;
+        if (refreshTicks > 0) {
+            Bukkit.getScheduler().runTaskTimer(plugin, this::invalidateAll, refreshTicks, refreshTicks);
+        }
+    }
+
+    /**
+     * Returns the player's page count, or 0 if they may not use a backpack.
+     */
+    public int getTier(@Nonnull Player player) {
+        return tiers.computeIfAbsent(player.getUniqueId(), id -> resolve(player));
+    }
+
+    public boolean canUseBackpack(@Nonnull Player player) {
+        return getTier(player) > 0;
+    }
+
+    public void invalidate(@Nonnull UUID playerId) {
+        tiers.remove(playerId);
+    }
+
+    public void invalidateAll() {
+        tiers.clear();
+    }
+
+    private static int resolve(Player player) {
+        int tier = 0;
+        for (PermissionAttachmentInfo info : player.getEffectivePermissions()) {
+            String permission = info.getPermission();
+            if (!info.getValue() || !permission.regionMatches(true, 0, PREFIX, 0, PREFIX.length())) continue;
+
+            try {
+                int value = Integer.parseInt(permission.substring(PREFIX.length()));
+                if (value > tier && value <= MAX_TIER) tier = value;
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        if (tier > 0) return tier;
+
+        for (int i = MAX_TIER; i >= 1; i--) {
+            if (player.hasPermission(PREFIX + i)) return i;
+        }
+        return 0;
+    }
+
+    /* EVENTS */
+
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onPlayerJoin(@Nonnull PlayerJoinEvent event) {
+        invalidate(event.getPlayer().getUniqueId());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerChangedWorld(@Nonnull PlayerChangedWorldEvent event) {
+        invalidate(event.getPlayer().getUniqueId());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(@Nonnull PlayerQuitEvent event) {
+        invalidate(event.getPlayer().getUniqueId());
+    }
+}
@@ -1,7 +1,13 @@
 package net.duart.virtualstorage.listener;
 
-import net.duart.virtualstorage.util.FileHandlers;
+import net.duart.virtualstorage.util.AutosaveScheduler;
+import net.duart.virtualstorage.util.BackpackCache;
+import net.duart.virtualstorage.util.BackpackData;
+import net.duart.virtualstorage.util.BackpackSnapshot;
 import net.duart.virtualstorage.util.Messages;
+import net.duart.virtualstorage.util.PrefetchCache;
+import net.duart.virtualstorage.util.SaveQueue;
+import net.duart.virtualstorage.util.StorageBackend;
 import org.bukkit.Bukkit;
 import org.bukkit.Material;
 import org.bukkit.NamespacedKey;
@@ -9,8 +15,11 @@ import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.inventory.InventoryAction;
 import org.bukkit.event.inventory.InventoryClickEvent;
 import org.bukkit.event.inventory.InventoryCloseEvent;
+import org.bukkit.event.inventory.InventoryDragEvent;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.meta.ItemMeta;
@@ -19,214 +28,228 @@ import org.bukkit.plugin.Plugin;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 
 public class VirtualBackpack implements Listener {
 
     private final Plugin plugin;
 
-    private final ConcurrentHashMap<UUID, Integer> currentPageIndexMap = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<UUID, ArrayList<Inventory>> backpacks = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<Player, Player> adminToTargetMap = new ConcurrentHashMap<>();
-
-    private final Set<UUID> playersWithOpenBackpack = new HashSet<>();
-    private final Map<UUID, UUID> adminViewers = new HashMap<>();
-    private final Set<Inventory> backpackInventories = new HashSet<>();
-
-    private final FileHandlers fileHandlers;
+    // Main thread only, see BackpackSession
+    private final Map<UUID, BackpackSession> sessions = new HashMap<>();
+    private final Map<UUID, BackpackSession> viewedSessions = new HashMap<>();
+    private final Map<UUID, List<ItemStack>> overflowBatch = new HashMap<>();
+
+    private final StorageBackend storage;
+    private final SaveQueue saveQueue;
+    private final PrefetchCache prefetchCache;
+    private final BackpackCache backpackCache;
+    private final AutosaveScheduler autosaveScheduler;
+    private final PermissionTiers permissionTiers;
     private final NamespacedKey NAV_KEY;
+    private ItemStack prevArrow;
+    private ItemStack nextArrow;
+    private boolean titleUpdates = true;
 
     private static final int NAV_PREV_SLOT = 45;
     private static final int NAV_NEXT_SLOT = 53;
     private static final int INVENTORY_SIZE = 54;
+    private static final long PLACEABLE_SLOTS = ((1L << INVENTORY_SIZE) - 1) & ~(1L << NAV_PREV_SLOT) & ~(1L << NAV_NEXT_SLOT);
 
-    public VirtualBackpack(Plugin plugin, FileHandlers fileHandlers) {
+    public VirtualBackpack(Plugin plugin, StorageBackend storage, SaveQueue saveQueue, PermissionTiers permissionTiers) {
         this.plugin = plugin;
-        this.fileHandlers = fileHandlers;
+        this.storage = storage;
+        this.saveQueue = saveQueue;
+        this.permissionTiers = permissionTiers;
+        this.prefetchCache = new PrefetchCache(plugin);
+        this.backpackCache = new BackpackCache(plugin, this::evictBackpack);
+        this.autosaveScheduler = new AutosaveScheduler(plugin, this::getDirtyBackpacks, this::autosave);
         NAV_KEY = new NamespacedKey(plugin, "navarrow");
+        reloadNavigationItems();
     }
 
     /* OPEN BACKPACK HANDLERS */
     public void openBackpack(@Nonnull Player player) {
+        openBackpack(player, null);
+    }
+
+    /**
+     * Opens the player's backpack on the first page holding items that match {@code query}. A loaded backpack is
+     * searched in memory.
+     */
+    public void searchBackpack(@Nonnull Player player, @Nonnull String query) {
+        openBackpack(player, query);
+    }
+
+    private void openBackpack(@Nonnull Player player, @Nullable String search) {
         UUID playerId = player.getUniqueId();
+        BackpackSession session = sessions.get(playerId);
 
-        if (isBackpackOpen(playerId)) {
+        if (session != null && session.isOpen()) {
             player.sendMessage(Messages.get("waitToOpen"));
             return;
         }
 
-        currentPageIndexMap.put(playerId, 0);
-        markBackpackOpen(player);
-
-        File gzippedFile = new File(plugin.getDataFolder(), player.getName() + " - " + playerId + ".yml.gz");
-        File yamlFile = new File(plugin.getDataFolder(), player.getName() + " - " + playerId + ".yml");
-
-        CompletableFuture.supplyAsync(() -> {
-            FileHandlers.BackpackData data = null;
-
-            try {
-                if (gzippedFile.exists()) {
-                    data = fileHandlers.loadBackpackData(playerId, gzippedFile);
-                } else if (yamlFile.exists() || !gzippedFile.exists()) {
-                    data = fileHandlers.loadBackpackData(playerId, yamlFile);
+        if (session != null && backpackCache.acquireHot(playerId)) {
+            int maxPages = getMaxPages(playerId);
+            if (session.getPages().size() >= maxPages) {
+                attachViewer(session, player, false);
+                assemblePages(session, maxPages, null);
+                if (!session.getPages().isEmpty()) {
+                    player.openInventory(showPage(session, firstPage(session, player, search)));
                 }
-            } catch (Exception e) {
-                plugin.getLogger().log(Level.SEVERE, "Error loading backpack for player " + player.getName(), e);
+                return;
             }
+            // New pages are filled from the stored overflow, which is read off the main thread with a full load
+            evictBackpack(playerId);
+            session = null;
+        }
+        if (session != null) {
+            // Closed this tick and already saved, the load below picks up the pending snapshot
+            unloadBackpack(playerId);
+        }
 
-            return data;
-
-        }).thenAccept(data -> Bukkit.getScheduler().runTask(plugin, () -> {
-            ArrayList<Inventory> pages = backpacks.computeIfAbsent(playerId, k -> new ArrayList<>());
-
-            pages.clear();
-
-            if (data != null && data.pageCount() > 0) {
-                for (int i = 0; i < data.pageCount(); i++) {
-                    Inventory page = Bukkit.createInventory(null, INVENTORY_SIZE, buildTitle(i + 1, data.pageCount()));
-
-                    Map<Integer, ItemStack> pageItems = data.pages().get(i);
-                    if (pageItems != null) {
-                        for (Map.Entry<Integer, ItemStack> entry : pageItems.entrySet()) {
-                            int slot = entry.getKey();
-                            if (slot >= 0 && slot < page.getSize()) {
-                                page.setItem(slot, entry.getValue());
-                            }
-                        }
-                    }
+        session = new BackpackSession(playerId);
+        sessions.put(playerId, session);
+        attachViewer(session, player, false);
 
-                    pages.add(page);
-                    registerBackpackInventory(page);
-                }
-            }
-            rebuildPageTitles(pages);
-            ensurePageCountMatchesPermissions(playerId, pages, false);
-            refreshPagesAndNavigation(pages);
+        PrefetchCache.Entry prefetched = prefetchCache.take(playerId);
+        if (prefetched != null) {
+            showBackpack(session, player, prefetched.data(), prefetched.overflowItems(), search);
+            return;
+        }
 
-            if (!pages.isEmpty()) {
-                player.openInventory(pages.get(0));
-            }
-            adminToTargetMap.remove(player);
-        }));
+        loadInto(session, player, player.getName(), search);
     }
 
     public void openTargetBackpack(Player admin, Player target) {
-        boolean hasPermission = false;
-
-        for (int i = 999; i >= 1; i--) {
-            if (target.hasPermission("virtualstorages.use." + i)) {
-                hasPermission = true;
-                break;
-            }
-        }
-
-        if (!hasPermission) {
+        if (!permissionTiers.canUseBackpack(target)) {
             admin.sendMessage(Messages.get("noPermissionOther"));
             return;
         }
 
         UUID targetId = target.getUniqueId();
+        BackpackSession existing = sessions.get(targetId);
 
-        if (isBackpackOpen(targetId)) {
+        if (existing != null && existing.isOpen()) {
             admin.sendMessage(Messages.get("backpackInUse"));
             return;
         }
 
-        markAdminViewing(admin, targetId);
+        if (existing != null) {
+            evictBackpack(targetId);
+        }
 
-        File gzippedFile = new File(plugin.getDataFolder(), target.getName() + " - " + targetId + ".yml.gz");
-        File yamlFile = new File(plugin.getDataFolder(), target.getName() + " - " + targetId + ".yml");
+        BackpackSession session = new BackpackSession(targetId);
+        sessions.put(targetId, session);
+        attachViewer(session, admin, true);
 
-        CompletableFuture.supplyAsync(() -> {
-            FileHandlers.BackpackData data = null;
+        loadInto(session, admin, target.getName(), null);
+    }
 
-            try {
-                if (gzippedFile.exists()) {
-                    data = fileHandlers.loadBackpackData(targetId, gzippedFile);
-                } else if (yamlFile.exists()) {
-                    data = fileHandlers.loadBackpackData(targetId, yamlFile);
-                }
-            } catch (Exception e) {
-                plugin.getLogger().log(Level.SEVERE, "Error handling backpack files for player " + target.getName(), e);
+    /**
+     * Loads the owner's backpack and stored overflow off the main thread and shows it, unless the session was
+     * dropped or the viewer left in the meantime. When the stored backpack cannot be read the session is dropped
+     * instead of opening it empty, which would overwrite the stored items on the next save.
+     */
+    private void loadInto(@Nonnull BackpackSession session, @Nonnull Player viewer, String ownerName, @Nullable String search) {
+        UUID ownerId = session.getOwnerId();
+        flushOverflowBatch();
+
+        CompletableFuture.supplyAsync(() -> new PrefetchCache.Entry(loadBackpackData(ownerId, ownerName),
+                saveQueue.peekOverflow(ownerId))).whenComplete((loaded, error) -> Bukkit.getScheduler().runTask(plugin, () -> {
+            if (error != null) {
+                plugin.getLogger().log(Level.SEVERE, "Error loading backpack for player " + ownerName, error);
+                if (sessions.get(ownerId) == session) unloadBackpack(ownerId);
+                if (viewer.isOnline()) viewer.sendMessage(Messages.get("loadFailed"));
+                return;
             }
+            if (sessions.get(ownerId) != session || !session.isViewer(viewer.getUniqueId()) || !viewer.isOnline()) return;
+            showBackpack(session, viewer, loaded.data(), loaded.overflowItems(), search);
+        }));
+    }
 
-            return data;
+    /**
+     * Builds the pages and opens the first one, or the first one matching {@code search}. {@code knownOverflow} is
+     * the owner's stored overflow, read together with the backpack.
+     */
+    private void showBackpack(@Nonnull BackpackSession session, @Nonnull Player viewer, @Nullable BackpackData data,
+                              @Nullable List<ItemStack> knownOverflow, @Nullable String search) {
+        ArrayList<BackpackPage> pages = session.getPages();
 
-        }).thenAccept(data -> Bukkit.getScheduler().runTask(plugin, () -> {
-            ArrayList<Inventory> pages = backpacks.computeIfAbsent(targetId, k -> new ArrayList<>());
+        pages.clear();
+        session.noteFreeSpace(0);
 
-            pages.clear();
+        if (data != null) {
+            for (ItemStack[] contents : data.toPageContents()) {
+                pages.add(new BackpackPage(contents));
+            }
+        }
+        session.markLoaded();
+        assemblePages(session, getMaxPages(session.getOwnerId()), knownOverflow);
 
-            if (data != null && data.pageCount() > 0) {
-                for (int i = 0; i < data.pageCount(); i++) {
-                    Inventory page = Bukkit.createInventory(null, INVENTORY_SIZE, buildTitle(i + 1, data.pageCount()));
+        if (!pages.isEmpty()) {
+            viewer.openInventory(showPage(session, firstPage(session, viewer, search)));
+        }
+    }
 
-                    Map<Integer, ItemStack> pageItems = data.pages().get(i);
-                    if (pageItems != null) {
-                        for (Map.Entry<Integer, ItemStack> entry : pageItems.entrySet()) {
-                            int slot = entry.getKey();
-                            if (slot >= 0 && slot < page.getSize()) {
-                                page.setItem(slot, entry.getValue());
-                            }
-                        }
-                    }
+    /**
+     * Returns the page a backpack opens on. With a search it is the first page holding a match, and the viewer is
+     * told which pages have matches and where they are on that page.
+     */
+    private int firstPage(@Nonnull BackpackSession session, @Nonnull Player viewer, @Nullable String search) {
+        if (search == null) return 0;
 
-                    pages.add(page);
-                    registerBackpackInventory(page);
-                }
-            }
+        SortedMap<Integer, Long> matches = session.search(search);
+        if (matches.isEmpty()) {
+            viewer.sendMessage(Messages.get("searchNotFound", "%query%", search));
+            return 0;
+        }
 
-            rebuildPageTitles(pages);
-            ensurePageCountMatchesPermissions(targetId, pages, true);
-            refreshPagesAndNavigation(pages);
+        int count = 0;
+        StringJoiner pages = new StringJoiner(", ");
+        for (Map.Entry<Integer, Long> match : matches.entrySet()) {
+            count += Long.bitCount(match.getValue());
+            pages.add(String.valueOf(match.getKey() + 1));
+        }
 
-            adminToTargetMap.put(admin, target);
+        int pageIndex = matches.firstKey();
+        StringJoiner slots = new StringJoiner(", ");
+        for (long remaining = matches.get(pageIndex); remaining != 0; remaining &= remaining - 1) {
+            int slot = Long.numberOfTrailingZeros(remaining);
+            slots.add((slot / 9 + 1) + ":" + (slot % 9 + 1));
+        }
 
-            if (!pages.isEmpty()) {
-                admin.openInventory(pages.get(0));
-            }
-        }));
+        viewer.sendMessage(Messages.get("searchFound", "%query%", search, "%count%", count, "%pages%", pages));
+        viewer.sendMessage(Messages.get("searchSlots", "%page%", pageIndex + 1, "%slots%", slots));
+        session.setCurrentPage(pageIndex);
+        return pageIndex;
     }
 
     /* EVENTS */
     @EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
     public void onInventoryClick(@Nonnull InventoryClickEvent event) {
-        Player player = (Player) event.getWhoClicked();
-        UUID playerId = player.getUniqueId();
         Inventory clickedInventory = event.getClickedInventory();
-
-        if (clickedInventory == null || !isBackpackInventory(clickedInventory)) {
+        if (clickedInventory == null || !(clickedInventory.getHolder() instanceof BackpackHolder holder)) {
             return;
         }
 
-        UUID targetId = playerId;
-        UUID mapped = adminViewers.get(player.getUniqueId());
-        if (mapped != null) targetId = mapped;
-        else if (adminToTargetMap.containsKey(player)) {
-            targetId = adminToTargetMap.get(player).getUniqueId();
+        // A page that is no longer live was already saved, taking items out of it would duplicate them
+        if (!isLivePage(holder)) {
+            event.setCancelled(true);
+            return;
         }
 
-        ArrayList<Inventory> pages = getBackpackPages(targetId);
-        int currentPageIndex = currentPageIndexMap.getOrDefault(targetId, 0);
-        Inventory currentPage = pages.get(currentPageIndex);
-
-        if (event.getClickedInventory() == null || !event.getClickedInventory().equals(currentPage)) {
+        BackpackSession session = holder.getSession();
+        int slot = event.getSlot();
+        if (!session.getPages().get(holder.getPageIndex()).isArrowSlot(slot)) {
             return;
         }
 
-        ItemStack clickedItem = event.getCurrentItem();
-        if (clickedItem == null || clickedItem.getType() != Material.ARROW) return;
-        if (!isNavigationItem(clickedItem)) return;
-
-        int slot = event.getSlot();
-        if (slot != NAV_PREV_SLOT && slot != NAV_NEXT_SLOT) {
+        // Arrows never leave their slot, whatever the click
+        event.setCancelled(true);
+        if (holder.getPageIndex() != session.getCurrentPage()) {
             return;
         }
 
@@ -237,567 +260,517 @@ public class VirtualBackpack implements Listener {
             return;
         }
 
-        event.setCancelled(true);
+        Player player = (Player) event.getWhoClicked();
         int direction = slot == NAV_PREV_SLOT ? -1 : 1;
-        changePage(targetId, direction, player);
+        int previousPage = session.getCurrentPage();
+        changePage(session, direction);
+        if (session.getCurrentPage() == previousPage) return;
 
-        int updatedPageIndex = currentPageIndexMap.getOrDefault(targetId, 0);
-        Inventory updatedPage = getBackpackPages(targetId).get(updatedPageIndex);
-        Bukkit.getScheduler().runTask(plugin, () -> player.openInventory(updatedPage));
+        Bukkit.getScheduler().runTask(plugin, () -> {
+            if (sessions.get(session.getOwnerId()) != session || !session.isViewer(player.getUniqueId())) return;
+            if (!turnPageInPlace(session, holder, player)) {
+                player.openInventory(showPage(session, session.getCurrentPage()));
+            }
+        });
     }
 
-    @EventHandler
-    public void onInventoryClose(@Nonnull InventoryCloseEvent event) {
-        Player player = (Player) event.getPlayer();
-        UUID playerId = player.getUniqueId();
-        Inventory closedInventory = event.getInventory();
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBackpackContentsClick(@Nonnull InventoryClickEvent event) {
+        Inventory topInventory = event.getView().getTopInventory();
+        Inventory clickedInventory = event.getClickedInventory();
 
-        if (!isBackpackInventory(closedInventory)) {
+        if (clickedInventory == null || !(topInventory.getHolder() instanceof BackpackHolder holder)) return;
+        if (event.getAction() == InventoryAction.NOTHING) return;
+
+        if (clickedInventory != topInventory
+                && event.getAction() != InventoryAction.MOVE_TO_OTHER_INVENTORY
+                && event.getAction() != InventoryAction.COLLECT_TO_CURSOR) {
             return;
         }
 
-        markBackpackClosed(player);
+        markPageChanged(holder);
+    }
 
-        UUID targetId;
-        boolean isAdmin = false;
-        if (adminToTargetMap.containsKey(player)) {
-            targetId = adminToTargetMap.get(player).getUniqueId();
-            isAdmin = true;
-        } else {
-            targetId = playerId;
-        }
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBackpackContentsDrag(@Nonnull InventoryDragEvent event) {
+        Inventory topInventory = event.getView().getTopInventory();
+        if (!(topInventory.getHolder() instanceof BackpackHolder holder)) return;
 
-        ArrayList<Inventory> pages = getBackpackPages(targetId);
-        int currentPageIndex = currentPageIndexMap.getOrDefault(targetId, 0);
+        int topSize = topInventory.getSize();
+        for (int rawSlot : event.getRawSlots()) {
+            if (rawSlot < topSize) {
+                markPageChanged(holder);
+                return;
+            }
+        }
+    }
 
-        if (currentPageIndex >= pages.size() || !closedInventory.equals(pages.get(currentPageIndex))) {
+    @EventHandler
+    public void onInventoryClose(@Nonnull InventoryCloseEvent event) {
+        if (!(event.getInventory().getHolder() instanceof BackpackHolder holder)) {
             return;
         }
 
-        pages.set(currentPageIndex, closedInventory);
-
-        if (isAdmin) {
-            int maxPages = getMaxPages(targetId);
-            List<ItemStack> overflowItems = new ArrayList<>();
-
-            for (int i = maxPages; i < pages.size(); i++) {
-                for (ItemStack item : pages.get(i).getContents()) {
-                    if (item != null && !isNavigationItem(item)) {
-                        overflowItems.add(item.clone());
-                    }
-                }
-            }
+        UUID playerId = event.getPlayer().getUniqueId();
+        BackpackSession session = holder.getSession();
+        if (!session.isViewer(playerId)) {
+            return;
+        }
 
-            if (!overflowItems.isEmpty()) {
-                fileHandlers.saveOverflowItems(targetId, overflowItems);
-            } else {
-                try {
-                    Files.deleteIfExists(Paths.get(plugin.getDataFolder().getPath(), targetId + "-overflow-.yml.gz"));
-                } catch (IOException e) {
-                    plugin.getLogger().warning("Failed to delete overflow file for player: " + targetId);
-                }
-            }
+        // Turning the page closes the previous one, the viewer stays in the session
+        if (isLivePage(holder) && holder.getPageIndex() != session.getCurrentPage()) {
+            session.getPages().get(holder.getPageIndex()).release();
+            return;
+        }
 
-            ArrayList<Inventory> allowedPages = new ArrayList<>();
-            for (int i = 0; i < maxPages && i < pages.size(); i++) {
-                allowedPages.add(pages.get(i));
-            }
-            fileHandlers.saveBackpackInventoryForTarget(targetId, allowedPages);
+        viewedSessions.remove(playerId, session);
+        if (sessions.get(session.getOwnerId()) == session && session.isLoaded()) {
+            closeSession(session);
         } else {
-            fileHandlers.saveBackpackInventoryForTarget(targetId, pages);
+            session.close();
         }
+    }
 
-        currentPageIndexMap.put(targetId, 0);
-
-        boolean someoneElseViewing = false;
-        for (Inventory inv : pages) {
-            if (!inv.getViewers().isEmpty()) {
-                for (org.bukkit.entity.HumanEntity viewer : inv.getViewers()) {
-                    if (!viewer.getUniqueId().equals(player.getUniqueId())) {
-                        someoneElseViewing = true;
-                        break;
-                    }
-                }
-            }
-            if (someoneElseViewing) break;
-        }
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onAsyncPreLogin(@Nonnull AsyncPlayerPreLoginEvent event) {
+        if (event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED || !prefetchCache.isEnabled()) return;
 
-        if (!someoneElseViewing) {
-            Bukkit.getScheduler().runTaskLater(plugin, () -> {
-                if (!isBackpackOpen(targetId)) {
-                    unloadBackpack(targetId);
-                }
-            }, 1L);
+        UUID playerId = event.getUniqueId();
+        String playerName = event.getName();
+        try {
+            prefetchCache.prefetch(playerId, () ->
+                    new PrefetchCache.Entry(loadBackpackData(playerId, playerName), saveQueue.peekOverflow(playerId)));
+        } catch (RuntimeException e) {
+            // The first open loads again and refuses to open the backpack if it still fails
+            plugin.getLogger().log(Level.SEVERE, "Error prefetching backpack for player " + playerName, e);
         }
     }
 
     @EventHandler
     public void onPlayerQuit(@Nonnull org.bukkit.event.player.PlayerQuitEvent event) {
-        Player player = event.getPlayer();
-        UUID playerId = player.getUniqueId();
-
-        markBackpackClosed(player);
+        UUID playerId = event.getPlayer().getUniqueId();
 
-        if (backpacks.containsKey(playerId)) {
-            ArrayList<Inventory> pages = backpacks.get(playerId);
-            fileHandlers.saveBackpackInventoryForTarget(playerId, pages);
-            unloadBackpack(playerId);
-        }
+        prefetchCache.forget(playerId);
 
-        if (adminToTargetMap.containsKey(player)) {
-            Player target = adminToTargetMap.get(player);
-            UUID targetId = target.getUniqueId();
-
-            ArrayList<Inventory> targetPages = backpacks.get(targetId);
-            if (targetPages != null) {
-                fileHandlers.saveBackpackInventoryForTarget(targetId, targetPages);
+        BackpackSession viewed = viewedSessions.remove(playerId);
+        if (viewed != null) {
+            if (sessions.get(viewed.getOwnerId()) != viewed) {
+                viewed.close();
+            } else if (viewed.isLoaded()) {
+                closeSession(viewed);
+            } else {
+                unloadBackpack(viewed.getOwnerId());
             }
+        }
 
-            adminToTargetMap.remove(player);
-
-            if (!target.isOnline()) {
-                unloadBackpack(targetId);
-            }
+        BackpackSession own = sessions.get(playerId);
+        if (own != null && !own.isOpen()) {
+            evictBackpack(playerId);
         }
     }
 
-    /* PERMISSION & STATE MANAGEMENT */
-    private void ensurePageCountMatchesPermissions(UUID playerId, @Nonnull ArrayList<Inventory> pages, boolean isAdmin) {
-        int allowedPages = getMaxPages(playerId);
-        int currentPages = pages.size();
-
-        if (currentPages > allowedPages) {
-            List<ItemStack> overflowItems = new ArrayList<>();
-
-            for (int pageIndex = currentPages - 1; pageIndex >= allowedPages; pageIndex--) {
-                if (pageIndex >= pages.size()) continue;
+    /* PAGE ASSEMBLY */
 
-                Inventory pageToRemove = pages.get(pageIndex);
+    /**
+     * Lays out the pages of a backpack that is being opened, in one stage. Pages past {@code allowedPages} are
+     * folded into free slots, new pages are filled from the stored overflow, admin views get the overflow as extra
+     * pages and every page gets its arrows. Whatever fits nowhere goes to the overflow. {@code knownOverflow} is the
+     * owner's stored overflow, read off the main thread; without it the stored overflow is left alone.
+     */
+    private void assemblePages(@Nonnull BackpackSession session, int allowedPages, @Nullable List<ItemStack> knownOverflow) {
+        UUID playerId = session.getOwnerId();
+        ArrayList<BackpackPage> pages = session.getPages();
+        int storedPages = pages.size();
+        boolean changed = false;
+        List<ItemStack> storedOverflow = knownOverflow != null ? knownOverflow : List.of();
 
-                for (ItemStack item : pageToRemove.getContents()) {
-                    if (item != null) {
-                        isNavigationItem(item);
-                    }
+        if (storedPages > allowedPages) {
+            List<BackpackPage> removedPages = pages.subList(allowedPages, storedPages);
+            List<ItemStack> excess = new ArrayList<>();
+            for (BackpackPage page : removedPages) {
+                for (ItemStack item : page.getItems()) {
+                    if (item != null) excess.add(item);
                 }
-
-                for (ItemStack item : pageToRemove.getContents()) {
-                    if (item != null && !isNavigationItem(item)) {
-                        boolean placed = false;
-
-                        for (int targetPageIndex = 0; targetPageIndex < allowedPages && targetPageIndex < pages.size(); targetPageIndex++) {
-                            Inventory targetPage = pages.get(targetPageIndex);
-                            int freeSlot = findFirstFreeNonNavSlot(targetPage, false);
-                            if (freeSlot != -1) {
-                                targetPage.setItem(freeSlot, item.clone());
-                                placed = true;
-                                break;
-                            }
-                        }
-
-                        if (!placed) {
-                            overflowItems.add(item.clone());
-                        }
-                    }
-                }
-            }
-
-            while (pages.size() > allowedPages) {
-                Inventory removedPage = pages.remove(pages.size() - 1);
-                unregisterBackpackInventory(removedPage);
             }
+            removedPages.clear();
+            changed = true;
 
+            List<ItemStack> overflowItems = session.placeItems(excess, PLACEABLE_SLOTS);
             if (!overflowItems.isEmpty()) {
-                fileHandlers.saveOverflowItems(playerId, overflowItems);
-                Player player = Bukkit.getPlayer(playerId);
-                if (player != null && player.isOnline()) {
-                    player.sendMessage(Messages.get("itemsOverflowed"));
-                }
-            } else {
-                try {
-                    Files.deleteIfExists(Paths.get(plugin.getDataFolder().getPath(), playerId + "-overflow-.yml.gz"));
-                } catch (IOException e) {
-                    plugin.getLogger().warning("Failed to delete overflow file for player: " + playerId);
-                }
+                saveQueue.appendOverflow(playerId, overflowItems);
+                sendMessage(playerId, "itemsOverflowed");
+
+                storedOverflow = new ArrayList<>(storedOverflow);
+                storedOverflow.addAll(overflowItems);
+            }
+        } else if (storedPages < allowedPages) {
+            for (int i = storedPages; i < allowedPages; i++) {
+                pages.add(new BackpackPage(INVENTORY_SIZE));
             }
 
-            refreshPagesAndNavigation(pages);
-            return;
+            if (!storedOverflow.isEmpty()) {
+                List<ItemStack> overflowItems = session.placeItems(storedOverflow, PLACEABLE_SLOTS);
+                saveQueue.consumeOverflow(playerId, storedOverflow.size(), overflowItems);
+                storedOverflow = overflowItems;
+                changed = true;
+                sendMessage(playerId, "itemsRecovered");
+            }
         }
 
-        if (currentPages < allowedPages) {
-            for (int i = currentPages; i < allowedPages; i++) {
-                Inventory page = Bukkit.createInventory(null, INVENTORY_SIZE, buildTitle(i + 1, allowedPages));
-                pages.add(page);
-                registerBackpackInventory(page);
+        if (session.isAdminView()) {
+            // Viewing does not take the items, the stored copy is replaced when the admin closes the view
+            for (int next = 0; next < storedOverflow.size(); ) {
+                BackpackPage overflowPage = new BackpackPage(INVENTORY_SIZE);
+                next = overflowPage.fill(storedOverflow, next, PLACEABLE_SLOTS);
+                pages.add(overflowPage);
+                changed = true;
             }
+        }
 
-            List<ItemStack> overflowItems = fileHandlers.loadOverflowItems(playerId);
-            if (!overflowItems.isEmpty()) {
-                for (ItemStack item : new ArrayList<>(overflowItems)) {
-                    boolean placed = false;
-                    for (Inventory page : pages) {
-                        int slot = findFirstFreeNonNavSlot(page, false);
-                        if (slot == NAV_NEXT_SLOT) continue;
-                        if (slot != -1) {
-                            page.setItem(slot, item);
-                            overflowItems.remove(item);
-                            placed = true;
-                            break;
-                        }
-                    }
-                    if (!placed) break;
-                }
+        int totalPages = pages.size();
+        List<ItemStack> displaced = new ArrayList<>();
 
-                if (overflowItems.isEmpty()) {
-                    try {
-                        Files.deleteIfExists(Paths.get(plugin.getDataFolder().getPath(), playerId + "-overflow-.yml.gz"));
-                    } catch (IOException e) {
-                        plugin.getLogger().warning("Failed to delete overflow file for player: " + playerId);
-                    }
-                } else {
-                    fileHandlers.saveOverflowItems(playerId, overflowItems);
-                }
+        for (int i = 0; i < totalPages; i++) {
+            BackpackPage page = pages.get(i);
+            setArrow(page, NAV_PREV_SLOT, i > 0 ? prevArrow : null, displaced);
+            setArrow(page, NAV_NEXT_SLOT, i < totalPages - 1 ? nextArrow : null, displaced);
+        }
 
-                Player player = Bukkit.getPlayer(playerId);
-                if (player != null && player.isOnline()) {
-                    player.sendMessage(Messages.get("itemsRecovered"));
-                }
+        if (!displaced.isEmpty()) {
+            for (ItemStack item : session.placeItems(displaced, PLACEABLE_SLOTS)) {
+                handleOverflowItem(playerId, item);
             }
+            changed = true;
         }
 
-        if (isAdmin) {
-            List<ItemStack> overflowItems = fileHandlers.loadOverflowItems(playerId);
-            while (!overflowItems.isEmpty()) {
-                Inventory overflowPage = Bukkit.createInventory(null, INVENTORY_SIZE, buildTitle(pages.size() + 1, "OVERFLOW"));
-                registerBackpackInventory(overflowPage);
-
-                for (ItemStack item : new ArrayList<>(overflowItems)) {
-                    int slot = findFirstFreeNonNavSlot(overflowPage, false);
-                    if (slot == NAV_NEXT_SLOT) continue;
-                    if (slot != -1) {
-                        overflowPage.setItem(slot, item);
-                        overflowItems.remove(item);
-                    } else break;
-                }
+        if (changed) session.markAllDirty();
+    }
 
-                pages.add(overflowPage);
+    /**
+     * Puts an arrow into a navigation slot, or clears an old arrow when {@code arrow} is null. An item in the way
+     * is added to {@code displaced}.
+     */
+    private void setArrow(@Nonnull BackpackPage page, int slot, @Nullable ItemStack arrow, @Nonnull List<ItemStack> displaced) {
+        if (page.isArrowSlot(slot)) {
+            if (arrow == null) {
+                page.setItem(slot, null);
+            } else if (page.getItem(slot) != arrow) {
+                page.setArrow(slot, arrow);
             }
+            return;
         }
+        if (arrow == null) return;
 
-        for (int i = 0; i < pages.size(); i++) {
-            Inventory oldPage = pages.get(i);
-            Inventory newPage = Bukkit.createInventory(null, INVENTORY_SIZE, buildTitle(i + 1, pages.size()));
-            newPage.setContents(oldPage.getContents());
-            pages.set(i, newPage);
-            registerBackpackInventory(newPage);
-        }
-
-        addNavigationItems(pages);
+        ItemStack current = page.getItem(slot);
+        if (current != null) displaced.add(current);
+        page.setArrow(slot, arrow);
     }
 
-    private int getMaxPages(UUID playerId) {
+    private void sendMessage(UUID playerId, String key) {
         Player player = Bukkit.getPlayer(playerId);
-        if (player != null) {
-            for (int i = 999; i >= 1; i--) {
-                if (player.hasPermission("virtualstorages.use." + i)) {
-                    return i;
-                }
-            }
+        if (player != null && player.isOnline()) {
+            player.sendMessage(Messages.get(key));
         }
-        return 1;
     }
 
-    private boolean isBackpackOpen(UUID targetId) {
-        if (playersWithOpenBackpack.contains(targetId)) return true;
-
-        return adminViewers.containsValue(targetId);
+    private int getMaxPages(UUID playerId) {
+        Player player = Bukkit.getPlayer(playerId);
+        return player != null ? Math.max(1, permissionTiers.getTier(player)) : 1;
     }
 
     /* INVENTORY MANAGEMENT */
 
-    private ArrayList<Inventory> getBackpackPages(UUID playerId) {
-        int maxPages = getMaxPages(playerId);
-        return backpacks.computeIfAbsent(playerId, k -> createNewBackpackPages(maxPages));
-    }
-
-    @Nonnull private ArrayList<Inventory> createNewBackpackPages(int maxPages) {
-        ArrayList<Inventory> pages = new ArrayList<>();
-        for (int i = 0; i < maxPages; i++) {
-            Inventory page = Bukkit.createInventory(null, INVENTORY_SIZE, buildTitle(i + 1, maxPages));
-            pages.add(page);
-            registerBackpackInventory(page);
+    /**
+     * Returns the inventory showing a page, creating it if nobody was looking at the page.
+     */
+    @Nonnull private Inventory showPage(@Nonnull BackpackSession session, int pageIndex) {
+        BackpackPage page = session.getPages().get(pageIndex);
+        if (page.getInventory() == null) {
+            String title = buildTitle(pageIndex + 1, session.getPages().size());
+            page.attach(BackpackHolder.createPage(session, pageIndex, INVENTORY_SIZE, title));
         }
-        addNavigationItems(pages);
-        return pages;
+        return page.getInventory();
     }
 
-    private int findFirstFreeNonNavSlot(@Nonnull Inventory inv, boolean allowSlot53IfOccupied) {
-        for (int slot = 0; slot < inv.getSize(); slot++) {
-            if (slot == NAV_PREV_SLOT) continue;
-
-            ItemStack it = inv.getItem(slot);
+    /**
+     * Whether the page belongs to the current session of its owner, pages of unloaded or rebuilt backpacks may
+     * still be open for a tick.
+     */
+    private boolean isLivePage(@Nonnull BackpackHolder holder) {
+        return sessions.get(holder.getOwnerId()) == holder.getSession() && holder.isCurrent();
+    }
 
-            if (slot == NAV_NEXT_SLOT) {
-                if (isNavigationItem(it)) continue;
+    /* ITEM MOVEMENT & OVERFLOW */
 
-                if (it == null) return slot;
+    private void handleOverflowItem(UUID playerId, ItemStack item) {
+        if (item == null) return;
 
-                if (allowSlot53IfOccupied) return slot;
-                continue;
+        if (playerId != null) {
+            prefetchCache.invalidate(playerId);
+            if (overflowBatch.isEmpty()) {
+                Bukkit.getScheduler().runTask(plugin, this::flushOverflowBatch);
             }
-
-            if (it == null) return slot;
+            overflowBatch.computeIfAbsent(playerId, k -> new ArrayList<>()).add(item.clone());
         }
-        return -1;
     }
 
-    private void refreshPagesAndNavigation(@Nonnull ArrayList<Inventory> pages) {
-        int totalPages = pages.size();
-        UUID playerId = getPlayerIdByInventory(pages);
-
-        for (int i = 0; i < totalPages; i++) {
-            Inventory page = pages.get(i);
+    /**
+     * Appends the items spilled since the last flush, one write and one message per player.
+     */
+    private void flushOverflowBatch() {
+        if (overflowBatch.isEmpty()) return;
 
-            if (i < totalPages - 1) {
-                handleSlotItem(pages, i, totalPages, playerId);
-            }
+        for (Map.Entry<UUID, List<ItemStack>> entry : overflowBatch.entrySet()) {
+            saveQueue.appendOverflow(entry.getKey(), entry.getValue());
 
-            if (totalPages == 1) {
-                for (int navSlot : new int[]{NAV_PREV_SLOT, NAV_NEXT_SLOT}) {
-                    ItemStack navItem = page.getItem(navSlot);
-                    if (isNavigationItem(navItem)) page.setItem(navSlot, null);
-                }
-            } else {
-                if (i > 0) page.setItem(NAV_PREV_SLOT, createNavigationItem(Messages.get("prevArrow")));
-                if (i < totalPages - 1) page.setItem(NAV_NEXT_SLOT, createNavigationItem(Messages.get("nextArrow")));
+            Player player = Bukkit.getPlayer(entry.getKey());
+            if (player != null && player.isOnline()) {
+                player.sendMessage(Messages.get("itemOverflowed"));
             }
         }
+        overflowBatch.clear();
     }
 
-    private boolean isBackpackInventory(@Nonnull Inventory inventory) {
-        return backpackInventories.contains(inventory);
+    /* NAVIGATION & UI */
+
+    /**
+     * Rebuilds the arrow templates from the current language. Pages pick them up the next time they are opened.
+     */
+    public void reloadNavigationItems() {
+        prevArrow = createNavigationItem(Messages.get("prevArrow"));
+        nextArrow = createNavigationItem(Messages.get("nextArrow"));
     }
 
-    /* ITEM MOVEMENT & OVERFLOW */
+    @Nonnull private ItemStack createNavigationItem(String displayName) {
+        ItemStack item = new ItemStack(Material.ARROW);
+        ItemMeta meta = item.getItemMeta();
+        if (meta != null) {
+            meta.setDisplayName(displayName);
+            meta.getPersistentDataContainer().set(NAV_KEY, PersistentDataType.BYTE, (byte) 1);
+            item.setItemMeta(meta);
+        }
+        return item;
+    }
 
-    private void handleSlotItem(@Nonnull List<Inventory> pages, int pageIndex, int totalPages, UUID playerId) {
-        if (pageIndex >= totalPages - 1) {
-            handleOverflowItem(playerId, pages.get(pageIndex).getItem(NAV_NEXT_SLOT));
-            pages.get(pageIndex).setItem(NAV_NEXT_SLOT, null);
-            return;
+    /**
+     * Shows the current page in the inventory the viewer already has open by swapping its contents and title, which
+     * spares the client a new window and the server a close and open. Returns false when the page has to be opened
+     * as its own inventory.
+     */
+    private boolean turnPageInPlace(@Nonnull BackpackSession session, @Nonnull BackpackHolder holder, @Nonnull Player viewer) {
+        if (!titleUpdates || !plugin.getConfig().getString("backpack.page-view", "in-place").equalsIgnoreCase("in-place")) {
+            return false;
         }
 
-        Inventory sourcePage = pages.get(pageIndex);
-        ItemStack item = sourcePage.getItem(NAV_NEXT_SLOT);
-        if (item == null || isNavigationItem(item)) return;
+        Inventory inventory = holder.getInventory();
+        if (!isLivePage(holder) || viewer.getOpenInventory().getTopInventory() != inventory) return false;
 
-        boolean placed = tryPlaceItemInPages(pages, pageIndex + 1, totalPages, item);
+        int pageIndex = session.getCurrentPage();
+        BackpackPage next = session.getPages().get(pageIndex);
+        if (next.getInventory() != null) return false;
 
-        if (placed) {
-            sourcePage.setItem(NAV_NEXT_SLOT, null);
-        } else {
-            handleOverflowItem(playerId, item);
-            sourcePage.setItem(NAV_NEXT_SLOT, null);
+        try {
+            viewer.getOpenInventory().setTitle(buildTitle(pageIndex + 1, session.getPages().size()));
+        } catch (NoSuchMethodError | UnsupportedOperationException e) {
+            titleUpdates = false;
+            plugin.getLogger().warning("This server cannot change inventory titles, backpack pages will be reopened instead.");
+            return false;
         }
-    }
 
-    private void handleSlotItem(List<Inventory> pages, int pageIndex, int totalPages, UUID playerId, ItemStack item) {
-        if (pageIndex >= totalPages - 1) {
-            handleOverflowItem(playerId, item);
-            return;
-        }
+        session.getPages().get(holder.getPageIndex()).release();
+        next.attach(inventory);
+        holder.setPageIndex(pageIndex);
+        return true;
+    }
 
-        if (item == null || isNavigationItem(item)) return;
+    private void changePage(@Nonnull BackpackSession session, int direction) {
+        int newPageIndex = session.getCurrentPage() + direction;
 
-        boolean placed = tryPlaceItemInPages(pages, pageIndex + 1, totalPages, item);
+        int allowedMax;
+        if (session.isAdminView()) {
+            allowedMax = session.getPages().size();
+        } else {
+            allowedMax = Math.min(getMaxPages(session.getOwnerId()), session.getPages().size());
+            if (allowedMax <= 0) allowedMax = 1;
+        }
 
-        if (!placed) {
-            handleOverflowItem(playerId, item);
+        if (newPageIndex >= 0 && newPageIndex < allowedMax) {
+            session.setCurrentPage(newPageIndex);
         }
     }
 
-    private boolean tryPlaceItemInPages(List<Inventory> pages, int startPage, int totalPages, ItemStack item) {
-        int maxPagesToCheck = Math.min(totalPages, startPage + 10);
+    /* PERSISTENCE */
 
-        for (int j = startPage; j < maxPagesToCheck; j++) {
-            if (j >= pages.size()) {
-                plugin.getLogger().warning("Page index " + j + " out of bounds during item placement");
-                break;
-            }
+    /**
+     * @throws java.io.UncheckedIOException when the stored backpack cannot be read
+     */
+    @Nullable private BackpackData loadBackpackData(UUID playerId, String playerName) {
+        BackpackSnapshot pending = saveQueue.getPending(playerId);
+        if (pending != null) {
+            return pending.toBackpackData();
+        }
 
-            int free = findFirstFreeNonNavSlot(pages.get(j), true);
-            if (free != -1) {
-                pages.get(j).setItem(free, item);
-                return true;
-            }
+        BackpackData cached = backpackCache.getWarm(playerId);
+        if (cached != null) {
+            return cached;
         }
 
-        return false;
+        return storage.load(playerId, playerName);
     }
 
-    private void handleOverflowItem(UUID playerId, ItemStack item) {
-        if (item == null || isNavigationItem(item)) return;
+    private void queueSave(@Nonnull BackpackSession session, @Nonnull List<BackpackPage> pages) {
+        UUID playerId = session.getOwnerId();
+        prefetchCache.invalidate(playerId);
+        BitSet dirty = session.takeDirty();
+        if (dirty == null) return;
 
-        if (playerId != null) {
-            List<ItemStack> overflow = new ArrayList<>(fileHandlers.loadOverflowItems(playerId));
-            overflow.add(item);
-            fileHandlers.saveOverflowItems(playerId, overflow);
+        backpackCache.invalidateWarm(playerId);
+        Player player = Bukkit.getPlayer(playerId);
+        saveQueue.enqueue(new BackpackSnapshot(playerId, player != null ? player.getName() : null, copyContents(pages), dirty));
+    }
 
-            Player player = Bukkit.getPlayer(playerId);
-            if (player != null && player.isOnline()) {
-                player.sendMessage(Messages.get("itemOverflowed"));
+    @Nonnull private List<ItemStack[]> copyContents(@Nonnull List<BackpackPage> pages) {
+        List<ItemStack[]> pageContents = new ArrayList<>(pages.size());
+        for (BackpackPage page : pages) {
+            ItemStack[] contents = page.getItems();
+            for (int slot = 0; slot < contents.length; slot++) {
+                if (contents[slot] != null) contents[slot] = contents[slot].clone();
             }
+            pageContents.add(contents);
         }
+        return pageContents;
     }
 
-    /* NAVIGATION & UI */
-
-    private void addNavigationItems(@Nonnull List<Inventory> pages) {
-        int totalPages = pages.size();
-        UUID playerId = getPlayerIdByInventory(pages);
-
-        for (int i = 0; i < totalPages; i++) {
-            Inventory page = pages.get(i);
-
-            ItemStack cur45 = page.getItem(NAV_PREV_SLOT);
-            if (i > 0) {
-                if (cur45 == null || isNavigationItem(cur45)) {
-                    page.setItem(NAV_PREV_SLOT, createNavigationItem(Messages.get("prevArrow")));
-                }
-            } else {
-                if (isNavigationItem(cur45)) page.setItem(NAV_PREV_SLOT, null);
-            }
+    /**
+     * Queues a dirty backpack that may still be open. Admin views are left to be saved when they close,
+     * since their extra pages belong to the overflow.
+     */
+    private void autosave(UUID playerId) {
+        BackpackSession session = sessions.get(playerId);
+        if (session == null || !session.isLoaded() || session.isAdminView()) return;
 
-            ItemStack cur53 = page.getItem(NAV_NEXT_SLOT);
-            if (i < totalPages - 1) {
-                if (cur53 == null || isNavigationItem(cur53)) {
-                    page.setItem(NAV_NEXT_SLOT, createNavigationItem(Messages.get("nextArrow")));
-                } else {
-                    ItemStack toMove = cur53.clone();
-                    page.setItem(NAV_NEXT_SLOT, null);
-                    handleSlotItem(pages, i, totalPages, playerId, toMove);
-                    page.setItem(NAV_NEXT_SLOT, createNavigationItem(Messages.get("nextArrow")));
-                }
-            } else {
-                if (isNavigationItem(cur53)) page.setItem(NAV_NEXT_SLOT, null);
-            }
-        }
+        queueSave(session, session.getPages());
     }
 
-    @Nonnull private ItemStack createNavigationItem(String displayName) {
-        ItemStack item = new ItemStack(Material.ARROW);
-        ItemMeta meta = item.getItemMeta();
-        if (meta != null) {
-            meta.setDisplayName(displayName);
-            meta.getPersistentDataContainer().set(NAV_KEY, PersistentDataType.BYTE, (byte) 1);
-            item.setItemMeta(meta);
+    @Nonnull private List<UUID> getDirtyBackpacks() {
+        List<UUID> dirty = new ArrayList<>();
+        for (BackpackSession session : sessions.values()) {
+            if (session.isDirty()) dirty.add(session.getOwnerId());
         }
-        return item;
+        return dirty;
     }
 
-    private void changePage(UUID targetId, int direction,@Nonnull Player viewer) {
-        ArrayList<Inventory> pages = getBackpackPages(targetId);
-        int currentPageIndex = currentPageIndexMap.getOrDefault(targetId, 0);
-        int newPageIndex = currentPageIndex + direction;
+    /**
+     * Saves a session's changes. An admin view keeps the owner's allowed pages and replaces the overflow with
+     * whatever is left on the pages past them.
+     */
+    private void saveSession(@Nonnull BackpackSession session) {
+        ArrayList<BackpackPage> pages = session.getPages();
+        if (!session.isAdminView()) {
+            queueSave(session, pages);
+            return;
+        }
+        if (!session.isDirty()) return;
 
-        UUID mapped = adminViewers.get(viewer.getUniqueId());
-        boolean viewerIsAdminViewingTarget =
-                (mapped != null && mapped.equals(targetId)) ||
-                        (adminToTargetMap.containsKey(viewer) &&
-                                adminToTargetMap.get(viewer).getUniqueId().equals(targetId));
+        UUID targetId = session.getOwnerId();
+        int maxPages = getMaxPages(targetId);
+        List<ItemStack> overflowItems = new ArrayList<>();
 
-        int allowedMax;
-        if (viewerIsAdminViewingTarget) {
-            allowedMax = pages.size();
-        } else {
-            allowedMax = getMaxPages(targetId);
-            if (allowedMax <= 0) allowedMax = 1;
+        for (int i = maxPages; i < pages.size(); i++) {
+            for (ItemStack item : pages.get(i).getItems()) {
+                if (item != null) {
+                    overflowItems.add(item.clone());
+                }
+            }
         }
 
-        if (newPageIndex >= 0 && newPageIndex < allowedMax) {
-            currentPageIndexMap.put(targetId, newPageIndex);
+        saveQueue.replaceOverflow(targetId, overflowItems);
+
+        ArrayList<BackpackPage> allowedPages = new ArrayList<>();
+        for (int i = 0; i < maxPages && i < pages.size(); i++) {
+            allowedPages.add(pages.get(i));
         }
+        queueSave(session, allowedPages);
     }
 
-    /* UTILITY & HELPERS */
+    /**
+     * Saves a session whose viewer closed it. A tick later, unless it was opened again, an admin view is
+     * unloaded and the owner's own backpack is kept in the hot cache.
+     */
+    private void closeSession(@Nonnull BackpackSession session) {
+        saveSession(session);
+        session.releasePages();
 
-    private String buildTitle(int page, Object maxPages) {
-        return Messages.get("title", "%page%", String.valueOf(page), "%maxpages%", String.valueOf(maxPages));
-    }
+        UUID targetId = session.getOwnerId();
+        boolean closedByAdmin = session.isAdminView();
+        session.close();
 
-    private boolean isNavigationItem(ItemStack item) {
-        if (item == null || item.getType() != Material.ARROW) return false;
-        ItemMeta meta = item.getItemMeta();
-        return meta != null &&
-                meta.getPersistentDataContainer().has(NAV_KEY, PersistentDataType.BYTE);
-    }
+        Bukkit.getScheduler().runTaskLater(plugin, () -> {
+            if (sessions.get(targetId) != session || session.isOpen()) return;
 
-    @Nullable private UUID getPlayerIdByInventory(List<Inventory> pages) {
-        for (UUID id : backpacks.keySet()) {
-            if (backpacks.get(id) == pages) return id;
-        }
-        return null;
+            if (closedByAdmin) {
+                unloadBackpack(targetId);
+            } else {
+                backpackCache.releaseHot(targetId);
+            }
+        }, 1L);
     }
 
-    private void rebuildPageTitles(@Nonnull List<Inventory> pages) {
-        int totalPages = pages.size();
-        for (int i = 0; i < totalPages; i++) {
-            Inventory old = pages.get(i);
-            Inventory rebuilt = Bukkit.createInventory(null, INVENTORY_SIZE, buildTitle(i + 1, totalPages));
-            rebuilt.setContents(old.getContents());
-            pages.set(i, rebuilt);
-            registerBackpackInventory(rebuilt);
+    /**
+     * Writes back a loaded backpack and moves it from live inventories to the warm cache.
+     */
+    private void evictBackpack(UUID playerId) {
+        BackpackSession session = sessions.get(playerId);
+        if (session == null) return;
+        if (!session.isLoaded()) {
+            unloadBackpack(playerId);
+            return;
         }
+
+        queueSave(session, session.getPages());
+        List<ItemStack[]> pageContents = copyContents(session.getPages());
+        unloadBackpack(playerId);
+        backpackCache.storeWarm(playerId, pageContents);
     }
 
-    /* MEMORY MANAGEMENT */
+    private void markPageChanged(@Nonnull BackpackHolder holder) {
+        if (!isLivePage(holder)) return;
 
-    private void markBackpackOpen(Player player) {
-        playersWithOpenBackpack.add(player.getUniqueId());
+        BackpackSession session = holder.getSession();
+        int pageIndex = holder.getPageIndex();
+        session.markDirty(pageIndex);
+        session.getPages().get(pageIndex).markChanged();
+        session.noteFreeSpace(pageIndex);
     }
 
-    private void markBackpackClosed(Player player) {
-        playersWithOpenBackpack.remove(player.getUniqueId());
-        adminViewers.remove(player.getUniqueId());
-    }
+    /* UTILITY & HELPERS */
 
-    private void markAdminViewing(Player admin, UUID targetId) {
-        adminViewers.put(admin.getUniqueId(), targetId);
+    private String buildTitle(int page, Object maxPages) {
+        return Messages.get("title", "%page%", String.valueOf(page), "%maxpages%", String.valueOf(maxPages));
     }
 
-    private void registerBackpackInventory(@Nonnull Inventory inventory) {
-        backpackInventories.add(inventory);
-    }
+    /* MEMORY MANAGEMENT */
 
-    private void unregisterBackpackInventory(@Nonnull Inventory inventory) {
-        backpackInventories.remove(inventory);
+    private void attachViewer(@Nonnull BackpackSession session, @Nonnull Player viewer, boolean adminView) {
+        session.open(viewer.getUniqueId(), adminView);
+        viewedSessions.put(viewer.getUniqueId(), session);
     }
 
     private void unloadBackpack(UUID playerId) {
-        currentPageIndexMap.remove(playerId);
-        ArrayList<Inventory> pages = backpacks.remove(playerId);
+        backpackCache.removeHot(playerId);
+        BackpackSession session = sessions.remove(playerId);
+        if (session == null) return;
 
-        if (pages != null) {
-            for (Inventory inv : pages) {
-                unregisterBackpackInventory(inv);
-            }
-        }
-
-        adminViewers.entrySet().removeIf(entry ->
-                entry.getValue().equals(playerId)
-        );
-
-        playersWithOpenBackpack.remove(playerId);
+        viewedSessions.values().remove(session);
+        session.close();
     }
 
     public void unloadAllBackpacks() {
-        Set<UUID> playerIds = new HashSet<>(backpacks.keySet());
-
-        for (UUID playerId : playerIds) {
+        for (BackpackSession session : new ArrayList<>(sessions.values())) {
+            UUID playerId = session.getOwnerId();
             try {
-                ArrayList<Inventory> pages = backpacks.get(playerId);
-                if (pages != null) {
-                    fileHandlers.saveBackpackInventoryForTarget(playerId, pages);
+                if (session.isLoaded()) {
+                    saveSession(session);
                 }
                 unloadBackpack(playerId);
             } catch (Exception e) {
@@ -805,30 +778,33 @@ public class VirtualBackpack implements Listener {
             }
         }
 
-        adminToTargetMap.clear();
+        viewedSessions.clear();
     }
 
-    /* BACKUP & MAINTENANCE */
+    /* MAINTENANCE */
+
+    @Nonnull public PrefetchCache getPrefetchCache() {
+        return prefetchCache;
+    }
 
-    public void createBackup() {
-        fileHandlers.createBackup();
+    @Nonnull public BackpackCache getBackpackCache() {
+        return backpackCache;
+    }
+
+    @Nonnull public PermissionTiers getPermissionTiers() {
+        return permissionTiers;
+    }
+
+    @Nonnull public AutosaveScheduler getAutosaveScheduler() {
+        return autosaveScheduler;
     }
 
     public void saveAllBackpacks() {
-        if (!adminToTargetMap.isEmpty()) {
-            for (Player admin : adminToTargetMap.keySet()) {
-                Player target = adminToTargetMap.get(admin);
-                UUID targetId = target.getUniqueId();
-                ArrayList<Inventory> pages = getBackpackPages(targetId);
-                fileHandlers.saveBackpackInventoryForTarget(targetId, pages);
-            }
-        } else {
-            for (UUID playerId : backpacks.keySet()) {
-                Player player = Bukkit.getPlayer(playerId);
-                if (player != null) {
-                    ArrayList<Inventory> pages = backpacks.get(playerId);
-                    fileHandlers.saveBackpackInventory(player, playerId, pages);
-                }
+        flushOverflowBatch();
+
+        for (BackpackSession session : sessions.values()) {
+            if (session.isLoaded()) {
+                saveSession(session);
             }
         }
     }
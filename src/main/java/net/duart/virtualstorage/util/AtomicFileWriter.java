@@ -0,0 +1,184 @@
+package net.duart.virtualstorage.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Crash-safe file replacement: data goes to a temporary sibling that is synced and then moved over the target.
+ * <p>
+ * {@link #stage} does this for many files at once. Every temporary file is written first, then all of them are
+ * synced concurrently, so the file system can commit them together instead of paying one sync latency per file.
+ */
+public final class AtomicFileWriter {
+    private final ExecutorService syncPool;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String GROUP_TEMP_SUFFIX = ".group.tmp";
+
+    public record Write(@Nonnull File target, @Nonnull byte[] data) { }
+
+    /**
+     * A temporary file that is on disk and only needs to be moved over its target.
+     */
+    public static final class Staged {
+        private final Write write;
+        private final File tempFile;
+
+        private Staged(Write write, File tempFile) {
+            this.write = write;
+            this.tempFile = tempFile;
+        }
+
+        @Nonnull public Write write() {
+            return write;
+        }
+
+        public void commit() throws IOException {
+            Files.move(tempFile.toPath(), write.target().toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        public void discard() {
+            tempFile.delete();
+        }
+    }
+
+    public AtomicFileWriter(int syncThreads) {
+        this.syncPool = Executors.newFixedThreadPool(Math.max(1, syncThreads), runnable -> {
+            Thread thread = new Thread(runnable, "VirtualStorages-Sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Replaces one file, syncing it on its own.
+     */
+    public static void write(@Nonnull File target, @Nonnull byte[] data) throws IOException {
+        File tempFile = new File(target.getParentFile(), target.getName() + TEMP_SUFFIX);
+        Files.createDirectories(target.getParentFile().toPath());
+        try {
+            try (FileOutputStream fileOutputStream = new FileOutputStream(tempFile)) {
+                fileOutputStream.write(data);
+                fileOutputStream.flush();
+                fileOutputStream.getFD().sync();
+            }
+            Files.move(tempFile.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            try {
+                Files.deleteIfExists(tempFile.toPath());
+            } catch (IOException ex) {
+                e.addSuppressed(ex);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Writes and syncs the temporary files of every write. Writes that failed are reported through
+     * {@code failures} and left out of the result, the rest are ready to be committed in any order.
+     */
+    @Nonnull public List<Staged> stage(@Nonnull List<Write> writes, @Nonnull Map<Write, IOException> failures) {
+        List<Staged> staged = new ArrayList<>(writes.size());
+        List<FileChannel> channels = new ArrayList<>(writes.size());
+
+        try {
+            for (Write write : writes) {
+                File tempFile = new File(write.target().getParentFile(), write.target().getName() + GROUP_TEMP_SUFFIX);
+                FileChannel channel = null;
+                try {
+                    Files.createDirectories(tempFile.getParentFile().toPath());
+                    channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    ByteBuffer data = ByteBuffer.wrap(write.data());
+                    while (data.hasRemaining()) {
+                        channel.write(data);
+                    }
+                    staged.add(new Staged(write, tempFile));
+                    channels.add(channel);
+                } catch (IOException e) {
+                    if (channel != null) closeQuietly(channel);
+                    tempFile.delete();
+                    failures.put(write, e);
+                }
+            }
+
+            List<Future<?>> syncs = new ArrayList<>(channels.size());
+            for (FileChannel channel : channels) {
+                syncs.add(syncPool.submit(() -> {
+                    channel.force(false);
+                    return null;
+                }));
+            }
+
+            List<Staged> synced = new ArrayList<>(staged.size());
+            for (int i = 0; i < syncs.size(); i++) {
+                try {
+                    syncs.get(i).get();
+                    synced.add(staged.get(i));
+                } catch (ExecutionException e) {
+                    staged.get(i).discard();
+                    failures.put(staged.get(i).write(), e.getCause() instanceof IOException io ? io : new IOException(e.getCause()));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    staged.get(i).discard();
+                    failures.put(staged.get(i).write(), new IOException("Interrupted while syncing", e));
+                }
+            }
+            return synced;
+        } finally {
+            channels.forEach(AtomicFileWriter::closeQuietly);
+        }
+    }
+
+    /**
+     * Syncs the directories of committed files so the moves themselves are durable. Not every platform allows
+     * this, so failures are ignored.
+     */
+    public void syncDirectories(@Nonnull Collection<Staged> committed) {
+        Set<File> directories = new HashSet<>();
+        for (Staged staged : committed) {
+            directories.add(staged.write().target().getParentFile());
+        }
+
+        List<Future<?>> syncs = new ArrayList<>(directories.size());
+        for (File directory : directories) {
+            syncs.add(syncPool.submit(() -> {
+                try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+                    channel.force(true);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> sync : syncs) {
+            try {
+                sync.get();
+            } catch (ExecutionException ignored) {
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public void shutdown() {
+        syncPool.shutdown();
+    }
+
+    private static void closeQuietly(@Nullable FileChannel channel) {
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package net.duart.virtualstorage.util;
+
+import org.bukkit.plugin.Plugin;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+
+/**
+ * Periodically saves dirty backpacks a few per tick instead of all at once.
+ * <p>
+ * Each cycle takes the backpacks that are dirty when it starts and hands them to the saver on the main thread,
+ * which only snapshots them for the save queue. The cycle is spread over a number of ticks, but a tick never spends
+ * more than its budget, so a large backlog takes more ticks rather than a longer one. The cost per backpack is
+ * tracked to decide how many fit in a tick.
+ */
+public class AutosaveScheduler {
+    private final Plugin plugin;
+    private final Supplier<Collection<UUID>> dirtyBackpacks;
+    private final Consumer<UUID> saver;
+
+    private final long intervalNanos;
+    private final long tickBudgetNanos;
+    private final int spreadTicks;
+
+    private final ArrayDeque<UUID> cycle = new ArrayDeque<>();
+    private long nextCycleAt;
+    private long averageSaveNanos = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private long cycleStartedAt;
+    private int cycleTicks;
+    private int cycleSaved;
+    private long cycleBusyNanos;
+    private long cycleMaxTickNanos;
+    private volatile CycleStats lastCycle;
+
+    /**
+     * Timings of a finished cycle. Busy and max tick time only count the main thread work.
+     */
+    public record CycleStats(int saved, int ticks, long durationMillis, double busyMillis, double maxTickMillis) { }
+
+    public AutosaveScheduler(@Nonnull Plugin plugin, @Nonnull Supplier<Collection<UUID>> dirtyBackpacks, @Nonnull Consumer<UUID> saver) {
+        this.plugin = plugin;
+        this.dirtyBackpacks = dirtyBackpacks;
+        this.saver = saver;
+
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(plugin.getConfig().getLong("autosave.interval-seconds", 300));
+        this.tickBudgetNanos = (long) (plugin.getConfig().getDouble("autosave.max-tick-millis", 2.0) * 1_000_000);
+        this.spreadTicks = Math.max(1, plugin.getConfig().getInt("autosave.spread-ticks", 100));
+
+        if (intervalNanos > 0 && tickBudgetNanos > 0) {
+            nextCycleAt = System.nanoTime() + intervalNanos;
+            plugin.getServer().getScheduler().runTaskTimer(plugin, this::tick, 1L, 1L);
+        }
+    }
+
+    public boolean isEnabled() {
+        return intervalNanos > 0 && tickBudgetNanos > 0;
+    }
+
+    private void tick() {
+        long start = System.nanoTime();
+        if (cycle.isEmpty()) {
+            if (start - nextCycleAt < 0) return;
+            startCycle(start);
+            if (cycle.isEmpty()) {
+                finishCycle(start);
+                return;
+            }
+        }
+
+        int remainingTicks = Math.max(1, spreadTicks - cycleTicks);
+        int target = Math.max(1, (cycle.size() + remainingTicks - 1) / remainingTicks);
+        long deadline = start + tickBudgetNanos;
+        int saved = 0;
+
+        long now = start;
+        while (!cycle.isEmpty() && saved < target && now - deadline < 0) {
+            UUID playerId = cycle.poll();
+            try {
+                saver.accept(playerId);
+            } catch (Exception e) {
+                plugin.getLogger().log(Level.SEVERE, "Error autosaving the backpack of " + playerId, e);
+            }
+            long after = System.nanoTime();
+            averageSaveNanos += ((after - now) - averageSaveNanos) / 8;
+            now = after;
+            saved++;
+
+            if (now + averageSaveNanos - deadline > 0) break;
+        }
+
+        long busy = now - start;
+        cycleTicks++;
+        cycleSaved += saved;
+        cycleBusyNanos += busy;
+        cycleMaxTickNanos = Math.max(cycleMaxTickNanos, busy);
+
+        if (cycle.isEmpty()) finishCycle(now);
+    }
+
+    private void startCycle(long now) {
+        cycle.addAll(dirtyBackpacks.get());
+        cycleStartedAt = now;
+        cycleTicks = 0;
+        cycleSaved = 0;
+        cycleBusyNanos = 0;
+        cycleMaxTickNanos = 0;
+    }
+
+    private void finishCycle(long now) {
+        lastCycle = new CycleStats(cycleSaved, cycleTicks, TimeUnit.NANOSECONDS.toMillis(now - cycleStartedAt),
+                cycleBusyNanos / 1_000_000.0, cycleMaxTickNanos / 1_000_000.0);
+        nextCycleAt = now + intervalNanos;
+    }
+
+    /* STATS */
+
+    @Nullable public CycleStats getLastCycle() {
+        return lastCycle;
+    }
+
+    public int getBacklog() {
+        return cycle.size();
+    }
+}
@@ -0,0 +1,261 @@
+package net.duart.virtualstorage.util;
+
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.plugin.Plugin;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+/**
+ * Keeps closed backpacks around so reopening them does not go back to storage.
+ * <p>
+ * The hot tier only tracks which loaded backpacks are idle, the live inventories stay with the listener.
+ * When a hot backpack runs out of time or room it is handed to the evictor, which writes it back and passes its
+ * contents to {@link #storeWarm}. The warm tier keeps those contents encoded like a {@code .vsb} file,
+ * optionally off-heap, until it runs out of time or room itself.
+ * <p>
+ * The hot tier is main thread only, the warm tier may be used from any thread.
+ */
+public class BackpackCache {
+    private final Plugin plugin;
+    private final Consumer<UUID> hotEvictor;
+
+    private final LinkedHashMap<UUID, Long> idleHot = new LinkedHashMap<>(16, 0.75f, true);
+    private final int hotMaxBackpacks;
+    private final long hotTtlNanos;
+
+    private final LinkedHashMap<UUID, WarmSlot> warm = new LinkedHashMap<>(16, 0.75f, true);
+    private final long warmMaxBytes;
+    private final long warmTtlNanos;
+    private final boolean warmOffHeap;
+    private long warmBytes;
+
+    private final LongAdder hotHits = new LongAdder();
+    private final LongAdder hotEvictions = new LongAdder();
+    private final LongAdder warmHits = new LongAdder();
+    private final LongAdder warmMisses = new LongAdder();
+    private final LongAdder warmEvictions = new LongAdder();
+
+    private static final class WarmSlot {
+        private ByteBuffer data;
+        private long storedAt;
+    }
+
+    public BackpackCache(@Nonnull Plugin plugin, @Nonnull Consumer<UUID> hotEvictor) {
+        this.plugin = plugin;
+        this.hotEvictor = hotEvictor;
+
+        this.hotMaxBackpacks = Math.max(0, plugin.getConfig().getInt("cache.hot.max-backpacks", 100));
+        this.hotTtlNanos = TimeUnit.SECONDS.toNanos(plugin.getConfig().getLong("cache.hot.ttl-seconds", 300));
+        this.warmMaxBytes = Math.max(0, plugin.getConfig().getLong("cache.warm.max-megabytes", 64)) * 1024 * 1024;
+        this.warmTtlNanos = TimeUnit.SECONDS.toNanos(plugin.getConfig().getLong("cache.warm.ttl-seconds", 3600));
+        this.warmOffHeap = plugin.getConfig().getBoolean("cache.warm.off-heap", false);
+
+        plugin.getServer().getScheduler().runTaskTimer(plugin, this::expire, 20L, 20L);
+    }
+
+    /* HOT */
+
+    /**
+     * Marks a loaded backpack as idle. Evicts the least recently used ones when the tier is full.
+     */
+    public void releaseHot(@Nonnull UUID playerId) {
+        if (hotMaxBackpacks == 0) {
+            hotEvictor.accept(playerId);
+            return;
+        }
+
+        idleHot.put(playerId, System.nanoTime());
+        while (idleHot.size() > hotMaxBackpacks) {
+            Iterator<UUID> eldest = idleHot.keySet().iterator();
+            UUID evicted = eldest.next();
+            eldest.remove();
+            evictHot(evicted);
+        }
+    }
+
+    /**
+     * Takes a backpack out of the idle set, returning whether its inventories are still loaded.
+     */
+    public boolean acquireHot(@Nonnull UUID playerId) {
+        if (idleHot.remove(playerId) == null) return false;
+        hotHits.increment();
+        return true;
+    }
+
+    /**
+     * Forgets an idle backpack without evicting it, for when its inventories are being dropped anyway.
+     */
+    public void removeHot(@Nonnull UUID playerId) {
+        idleHot.remove(playerId);
+    }
+
+    private void evictHot(UUID playerId) {
+        hotEvictions.increment();
+        try {
+            hotEvictor.accept(playerId);
+        } catch (Exception e) {
+            plugin.getLogger().log(Level.SEVERE, "Error evicting the cached backpack of " + playerId, e);
+        }
+    }
+
+    /* WARM */
+
+    /**
+     * Encodes the contents in the background and keeps them. An invalidation before the encoding finishes wins.
+     */
+    public void storeWarm(@Nonnull UUID playerId, @Nonnull List<ItemStack[]> pageContents) {
+        if (warmMaxBytes == 0) return;
+
+        WarmSlot slot = new WarmSlot();
+        synchronized (warm) {
+            removeWarm(playerId);
+            warm.put(playerId, slot);
+        }
+
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+            byte[] encoded;
+            try {
+                encoded = BackpackCodec.encode(pageContents);
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Could not cache the backpack of " + playerId, e);
+                synchronized (warm) {
+                    warm.remove(playerId, slot);
+                }
+                return;
+            }
+
+            ByteBuffer data = warmOffHeap ? ByteBuffer.allocateDirect(encoded.length) : ByteBuffer.allocate(encoded.length);
+            data.put(encoded).flip();
+
+            synchronized (warm) {
+                if (warm.get(playerId) != slot) return;
+                slot.data = data;
+                slot.storedAt = System.nanoTime();
+                warmBytes += encoded.length;
+
+                Iterator<Map.Entry<UUID, WarmSlot>> eldest = warm.entrySet().iterator();
+                while (warmBytes > warmMaxBytes && eldest.hasNext()) {
+                    WarmSlot evicted = eldest.next().getValue();
+                    if (evicted.data == null) continue;
+                    eldest.remove();
+                    warmBytes -= evicted.data.capacity();
+                    warmEvictions.increment();
+                }
+            }
+        });
+    }
+
+    /**
+     * Decodes the cached copy of a backpack, or returns null if there is none.
+     */
+    @Nullable public BackpackData getWarm(@Nonnull UUID playerId) {
+        byte[] encoded;
+        synchronized (warm) {
+            WarmSlot slot = warm.get(playerId);
+            if (slot == null || slot.data == null) {
+                warmMisses.increment();
+                return null;
+            }
+            encoded = new byte[slot.data.remaining()];
+            slot.data.duplicate().get(encoded);
+        }
+
+        try {
+            BackpackData data = BackpackCodec.decode(encoded);
+            warmHits.increment();
+            return data;
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Dropping unreadable cached backpack of " + playerId, e);
+            invalidateWarm(playerId);
+            warmMisses.increment();
+            return null;
+        }
+    }
+
+    /**
+     * Drops the cached copy, called whenever the backpack is written.
+     */
+    public void invalidateWarm(@Nonnull UUID playerId) {
+        synchronized (warm) {
+            removeWarm(playerId);
+        }
+    }
+
+    private void removeWarm(UUID playerId) {
+        WarmSlot slot = warm.remove(playerId);
+        if (slot != null && slot.data != null) warmBytes -= slot.data.capacity();
+    }
+
+    /* EXPIRY */
+
+    private void expire() {
+        long now = System.nanoTime();
+
+        List<UUID> expiredHot = new ArrayList<>();
+        for (Map.Entry<UUID, Long> entry : idleHot.entrySet()) {
+            if (now - entry.getValue() >= hotTtlNanos) expiredHot.add(entry.getKey());
+        }
+        for (UUID playerId : expiredHot) {
+            idleHot.remove(playerId);
+            evictHot(playerId);
+        }
+
+        synchronized (warm) {
+            Iterator<WarmSlot> slots = warm.values().iterator();
+            while (slots.hasNext()) {
+                WarmSlot slot = slots.next();
+                if (slot.data != null && now - slot.storedAt >= warmTtlNanos) {
+                    slots.remove();
+                    warmBytes -= slot.data.capacity();
+                    warmEvictions.increment();
+                }
+            }
+        }
+    }
+
+    /* STATS */
+
+    public int getHotSize() {
+        return idleHot.size();
+    }
+
+    public long getHotHits() {
+        return hotHits.sum();
+    }
+
+    public long getHotEvictions() {
+        return hotEvictions.sum();
+    }
+
+    public int getWarmSize() {
+        synchronized (warm) {
+            return warm.size();
+        }
+    }
+
+    public long getWarmBytes() {
+        synchronized (warm) {
+            return warmBytes;
+        }
+    }
+
+    public long getWarmHits() {
+        return warmHits.sum();
+    }
+
+    public long getWarmMisses() {
+        return warmMisses.sum();
+    }
+
+    public long getWarmEvictions() {
+        return warmEvictions.sum();
+    }
+}
@@ -0,0 +1,240 @@
+package net.duart.virtualstorage.util;
+
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.inventory.ItemStack;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.*;
+
+/**
+ * Versioned binary backpack format.
+ * <p>
+ * Layout: magic, version, compression, dictionary id, page count, item count, body CRC32, body length, body.
+ * The body holds only occupied slots as (page, slot, length, item bytes) records. Version 1 files have no
+ * dictionary id and are still read.
+ */
+public final class BackpackCodec {
+
+    public static final String EXTENSION = ".vsb";
+
+    private static final int MAGIC = 0x56534250; // "VSBP"
+    private static final byte VERSION = 2;
+    private static final byte COMPRESSION_NONE = 0;
+    private static final byte COMPRESSION_DEFLATE = 1;
+    private static final byte COMPRESSION_DICTIONARY = 2;
+    private static final int HEADER_SIZE_V1 = 4 + 1 + 1 + 4 + 4 + 4 + 4;
+    private static final int HEADER_SIZE = HEADER_SIZE_V1 + 4;
+
+    private static volatile int level = Deflater.DEFAULT_COMPRESSION;
+    private static volatile boolean useDictionary;
+
+    private BackpackCodec() { }
+
+    public static void init(@Nonnull FileConfiguration config, @Nonnull File dataFolder) {
+        level = Math.max(-1, Math.min(9, config.getInt("storage.compression.level", Deflater.DEFAULT_COMPRESSION)));
+        useDictionary = config.getBoolean("storage.compression.dictionary", false);
+        CompressionDictionary.init(dataFolder);
+    }
+
+    /**
+     * Encodes the given pages. Each array holds a page's slots; {@code null} entries are skipped.
+     */
+    @Nonnull public static byte[] encode(@Nonnull List<ItemStack[]> pages) throws IOException {
+        ByteArrayOutputStream rawBody = new ByteArrayOutputStream(1024);
+        int itemCount = writeBody(pages, rawBody);
+
+        int dictionaryId = useDictionary ? CompressionDictionary.getCurrentId() : 0;
+        byte[] dictionary = dictionaryId != 0 ? CompressionDictionary.get(dictionaryId) : null;
+        byte compression;
+        byte[] bodyBytes;
+        if (level == Deflater.NO_COMPRESSION) {
+            compression = COMPRESSION_NONE;
+            bodyBytes = rawBody.toByteArray();
+            dictionaryId = 0;
+        } else if (dictionary != null) {
+            compression = COMPRESSION_DICTIONARY;
+            bodyBytes = compress(rawBody.toByteArray(), level, dictionary);
+        } else {
+            dictionaryId = 0;
+            compression = COMPRESSION_DEFLATE;
+            bodyBytes = compress(rawBody.toByteArray(), level, null);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bodyBytes);
+
+        ByteArrayOutputStream fileBytes = new ByteArrayOutputStream(HEADER_SIZE + bodyBytes.length);
+        try (DataOutputStream out = new DataOutputStream(fileBytes)) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(compression);
+            out.writeInt(dictionaryId);
+            out.writeInt(pages.size());
+            out.writeInt(itemCount);
+            out.writeInt((int) crc.getValue());
+            out.writeInt(bodyBytes.length);
+            out.write(bodyBytes);
+        }
+        return fileBytes.toByteArray();
+    }
+
+    /**
+     * Returns the uncompressed body for the given pages, as used to train and measure dictionaries.
+     */
+    @Nonnull public static byte[] encodeBody(@Nonnull List<ItemStack[]> pages) throws IOException {
+        ByteArrayOutputStream rawBody = new ByteArrayOutputStream(1024);
+        writeBody(pages, rawBody);
+        return rawBody.toByteArray();
+    }
+
+    private static int writeBody(List<ItemStack[]> pages, ByteArrayOutputStream rawBody) throws IOException {
+        int itemCount = 0;
+        try (DataOutputStream body = new DataOutputStream(rawBody)) {
+            for (int page = 0; page < pages.size(); page++) {
+                ItemStack[] slots = pages.get(page);
+                for (int slot = 0; slot < slots.length; slot++) {
+                    ItemStack item = slots[slot];
+                    if (item == null) continue;
+
+                    byte[] itemBytes = ItemCodec.encode(item);
+                    body.writeInt(page);
+                    body.writeByte(slot);
+                    body.writeInt(itemBytes.length);
+                    body.write(itemBytes);
+                    itemCount++;
+                }
+            }
+        }
+        return itemCount;
+    }
+
+    /**
+     * Deflates the data, as a raw stream primed with the dictionary when one is given.
+     */
+    @Nonnull public static byte[] compress(@Nonnull byte[] data, int level, @Nullable byte[] dictionary) {
+        Deflater deflater = new Deflater(level, dictionary != null);
+        try {
+            if (dictionary != null) deflater.setDictionary(dictionary);
+            deflater.setInput(data);
+            deflater.finish();
+
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                compressed.write(buffer, 0, length);
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Nonnull public static BackpackData decode(@Nonnull byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != MAGIC) throw new IOException("Not a backpack file");
+
+        byte version = in.readByte();
+        if (version != 1 && version != VERSION) throw new IOException("Unsupported backpack format version " + version);
+
+        byte compression = in.readByte();
+        int dictionaryId = version == 1 ? 0 : in.readInt();
+        int headerSize = version == 1 ? HEADER_SIZE_V1 : HEADER_SIZE;
+        int pageCount = in.readInt();
+        int itemCount = in.readInt();
+        int storedCrc = in.readInt();
+        int bodyLength = in.readInt();
+
+        if (bodyLength < 0 || bodyLength > data.length - headerSize) {
+            throw new IOException("Truncated backpack file");
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, headerSize, bodyLength);
+        if ((int) crc.getValue() != storedCrc) throw new IOException("Backpack file checksum mismatch");
+
+        InputStream bodyStream;
+        if (compression == COMPRESSION_DEFLATE) {
+            bodyStream = new InflaterInputStream(new ByteArrayInputStream(data, headerSize, bodyLength));
+        } else if (compression == COMPRESSION_DICTIONARY) {
+            byte[] dictionary = CompressionDictionary.get(dictionaryId);
+            if (dictionary == null) throw new IOException("Missing compression dictionary " + dictionaryId);
+            bodyStream = new ByteArrayInputStream(inflate(data, headerSize, bodyLength, dictionary));
+        } else if (compression == COMPRESSION_NONE) {
+            bodyStream = new ByteArrayInputStream(data, headerSize, bodyLength);
+        } else {
+            throw new IOException("Unknown compression " + compression);
+        }
+
+        Map<Integer, Map<Integer, ItemStack>> pages = new HashMap<>();
+        try (DataInputStream body = new DataInputStream(new BufferedInputStream(bodyStream))) {
+            for (int i = 0; i < itemCount; i++) {
+                int page = body.readInt();
+                int slot = body.readUnsignedByte();
+                byte[] itemBytes = new byte[body.readInt()];
+                body.readFully(itemBytes);
+                pages.computeIfAbsent(page, k -> new HashMap<>()).put(slot, ItemCodec.decode(itemBytes));
+            }
+        }
+
+        return new BackpackData(pages, pageCount);
+    }
+
+    private static byte[] inflate(byte[] data, int offset, int length, byte[] dictionary) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setDictionary(dictionary);
+            inflater.setInput(data, offset, length);
+
+            ByteArrayOutputStream inflated = new ByteArrayOutputStream(length * 3);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int read = inflater.inflate(buffer);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed backpack body");
+                }
+                inflated.write(buffer, 0, read);
+            }
+            return inflated.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted compressed backpack body", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Checks the header and body checksum without decompressing or decoding any item.
+     */
+    public static boolean isValid(@Nonnull File file) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) return false;
+            byte version = in.readByte();
+            if (version != 1 && version != VERSION) return false;
+            in.readByte();
+            if (version != 1) in.readInt();
+            in.readInt();
+            in.readInt();
+            int storedCrc = in.readInt();
+            int bodyLength = in.readInt();
+
+            CRC32 crc = new CRC32();
+            byte[] buffer = new byte[8192];
+            int remaining = bodyLength;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, Math.min(buffer.length, remaining));
+                if (read == -1) return false;
+                crc.update(buffer, 0, read);
+                remaining -= read;
+            }
+            return (int) crc.getValue() == storedCrc;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package net.duart.virtualstorage.util;
+
+import org.bukkit.inventory.ItemStack;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public record BackpackData(Map<Integer, Map<Integer, ItemStack>> pages, int pageCount) {
+
+    private static final int PAGE_SIZE = 54;
+
+    /**
+     * Expands the stored items into one slot array per page.
+     */
+    @Nonnull public List<ItemStack[]> toPageContents() {
+        List<ItemStack[]> contents = new ArrayList<>(pageCount);
+        for (int page = 0; page < pageCount; page++) {
+            ItemStack[] slots = new ItemStack[PAGE_SIZE];
+            Map<Integer, ItemStack> pageItems = pages.get(page);
+            if (pageItems != null) {
+                pageItems.forEach((slot, item) -> {
+                    if (slot >= 0 && slot < PAGE_SIZE) slots[slot] = item;
+                });
+            }
+            contents.add(slots);
+        }
+        return contents;
+    }
+}
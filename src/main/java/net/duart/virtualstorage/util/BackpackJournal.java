@@ -0,0 +1,139 @@
+package net.duart.virtualstorage.util;
+
+import org.bukkit.inventory.ItemStack;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only per-player journal of page changes, replayed on top of the base {@code .vsb} file.
+ * <p>
+ * Every save appends one record holding the new page count and the full contents of each dirty page.
+ * Records are framed as (length, CRC32, payload), so a torn tail from a crash is detected and ignored.
+ */
+public final class BackpackJournal {
+
+    public static final String EXTENSION = ".vsj";
+
+    private BackpackJournal() { }
+
+    /**
+     * Result of a replay: the merged data, the number of intact records and the bytes they span.
+     */
+    public record Replay(@Nonnull BackpackData data, int records, long validLength) { }
+
+    /**
+     * Appends the dirty pages of a save as one record and forces it to disk.
+     *
+     * @return the number of bytes appended
+     */
+    public static int append(@Nonnull File journal, @Nonnull List<ItemStack[]> pages, @Nonnull BitSet dirtyPages) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(512);
+        try (DataOutputStream out = new DataOutputStream(payload)) {
+            out.writeInt(pages.size());
+            out.writeInt(dirtyPages.get(0, pages.size()).cardinality());
+
+            for (int page = dirtyPages.nextSetBit(0); page >= 0 && page < pages.size(); page = dirtyPages.nextSetBit(page + 1)) {
+                ItemStack[] slots = pages.get(page);
+
+                int itemCount = 0;
+                for (ItemStack item : slots) {
+                    if (item != null) itemCount++;
+                }
+
+                out.writeInt(page);
+                out.writeInt(itemCount);
+                for (int slot = 0; slot < slots.length; slot++) {
+                    if (slots[slot] == null) continue;
+                    byte[] itemBytes = ItemCodec.encode(slots[slot]);
+                    out.writeByte(slot);
+                    out.writeInt(itemBytes.length);
+                    out.write(itemBytes);
+                }
+            }
+        }
+
+        byte[] payloadBytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payloadBytes);
+
+        ByteBuffer record = ByteBuffer.allocate(8 + payloadBytes.length);
+        record.putInt(payloadBytes.length);
+        record.putInt((int) crc.getValue());
+        record.put(payloadBytes);
+        record.flip();
+
+        try (FileChannel channel = FileChannel.open(journal.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            channel.force(false);
+        }
+        return 8 + payloadBytes.length;
+    }
+
+    /**
+     * Replays the journal on top of the base data. Replay stops at the first damaged record.
+     */
+    @Nonnull public static Replay replay(@Nonnull File journal, @Nonnull BackpackData base) throws IOException {
+        Map<Integer, Map<Integer, ItemStack>> pages = new HashMap<>(base.pages());
+        int pageCount = base.pageCount();
+        int records = 0;
+        long validLength = 0;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                int storedCrc = in.readInt();
+                if (length <= 0 || length > in.available()) break;
+
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != storedCrc) break;
+
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                pageCount = record.readInt();
+                int count = pageCount;
+                pages.keySet().removeIf(page -> page >= count);
+
+                int dirtyCount = record.readInt();
+                for (int p = 0; p < dirtyCount; p++) {
+                    int page = record.readInt();
+                    int itemCount = record.readInt();
+                    Map<Integer, ItemStack> pageItems = new HashMap<>();
+                    for (int i = 0; i < itemCount; i++) {
+                        int slot = record.readUnsignedByte();
+                        byte[] itemBytes = new byte[record.readInt()];
+                        record.readFully(itemBytes);
+                        pageItems.put(slot, ItemCodec.decode(itemBytes));
+                    }
+                    pages.put(page, pageItems);
+                }
+                records++;
+                validLength += 8 + length;
+            }
+        } catch (EOFException ignored) {
+            // Torn tail record, everything before it has been applied
+        }
+
+        return new Replay(new BackpackData(pages, pageCount), records, validLength);
+    }
+}
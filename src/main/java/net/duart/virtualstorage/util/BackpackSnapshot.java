@@ -0,0 +1,42 @@
+package net.duart.virtualstorage.util;
+
+import org.bukkit.inventory.ItemStack;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Immutable copy of a backpack's page contents, taken on the main thread and handed to the writer.
+ * Navigation items are already stripped and every stored item is a private clone.
+ * {@code dirtyPages} marks the pages changed since the last save, for stores that can write single pages.
+ */
+public record BackpackSnapshot(@Nonnull UUID playerId, @Nullable String playerName, @Nonnull List<ItemStack[]> pages,
+                               @Nonnull BitSet dirtyPages) {
+
+    /**
+     * Returns this snapshot carrying the dirty pages of an older, still unwritten one as well.
+     */
+    @Nonnull public BackpackSnapshot mergeDirtyPages(@Nonnull BackpackSnapshot older) {
+        BitSet merged = (BitSet) dirtyPages.clone();
+        merged.or(older.dirtyPages);
+        return new BackpackSnapshot(playerId, playerName, pages, merged);
+    }
+
+    @Nonnull public BackpackData toBackpackData() {
+        Map<Integer, Map<Integer, ItemStack>> pagesData = new HashMap<>();
+        for (int page = 0; page < pages.size(); page++) {
+            ItemStack[] slots = pages.get(page);
+            Map<Integer, ItemStack> pageItems = new HashMap<>();
+            for (int slot = 0; slot < slots.length; slot++) {
+                if (slots[slot] != null) pageItems.put(slot, slots[slot].clone());
+            }
+            pagesData.put(page, pageItems);
+        }
+        return new BackpackData(pagesData, pages.size());
+    }
+}
@@ -0,0 +1,272 @@
+package net.duart.virtualstorage.util;
+
+import org.bukkit.plugin.Plugin;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Incremental backups into dated generation folders under {@code backup/}.
+ * <p>
+ * Every generation has a manifest with the size, modification time and CRC32C of each file. A file whose size and
+ * modification time match the previous generation is checksummed, and only linked to the previous copy when the
+ * CRC32C matches too, since a rewrite within the file system's timestamp granularity keeps both. The rest are
+ * copied on a small thread pool. Copies are validated against the checksum stored in the file itself where the
+ * format has one.
+ */
+public class BackupEngine {
+    private final Plugin plugin;
+    private final File backupFolder;
+    private final int generations;
+    private final int threads;
+
+    private static final String MANIFEST = "manifest.txt";
+    private static final String STAGING_SUFFIX = ".part";
+    private static final DateTimeFormatter GENERATION_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss");
+    private static final Pattern GENERATION_NAME = Pattern.compile("\\d{4}-\\d{2}-\\d{2}_\\d{2}-\\d{2}-\\d{2}(-\\d+)?");
+
+    private record ManifestEntry(long size, long lastModified, long checksum) { }
+
+    public BackupEngine(Plugin plugin) {
+        this.plugin = plugin;
+        this.backupFolder = new File(plugin.getDataFolder(), "backup");
+        this.generations = Math.max(1, plugin.getConfig().getInt("backup.generations", 5));
+        this.threads = Math.max(1, plugin.getConfig().getInt("backup.threads", 2));
+    }
+
+    /**
+     * Writes a new generation from the given sources and prunes the oldest ones. Blocks until done.
+     */
+    public synchronized void run(@Nonnull Collection<BackupSource> sources) {
+        long start = System.nanoTime();
+        if (!backupFolder.exists() && !backupFolder.mkdirs()) {
+            plugin.getLogger().log(Level.SEVERE, "Error creating backup directory");
+            return;
+        }
+        deleteStagingFolders();
+
+        List<File> existing = listGenerations();
+        File previous = existing.isEmpty() ? null : existing.get(existing.size() - 1);
+        Map<String, ManifestEntry> previousManifest = previous != null ? readManifest(previous) : Map.of();
+
+        File generation = newGenerationFolder();
+        File staging = new File(backupFolder, generation.getName() + STAGING_SUFFIX);
+        Map<String, ManifestEntry> manifest = new ConcurrentHashMap<>();
+        AtomicInteger copied = new AtomicInteger();
+        AtomicInteger unchanged = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "VirtualStorages-Backup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> tasks = new ArrayList<>(sources.size());
+            for (BackupSource source : sources) {
+                tasks.add(pool.submit(() -> {
+                    try {
+                        if (backupFile(source, staging, previous, previousManifest, manifest)) {
+                            copied.incrementAndGet();
+                        } else {
+                            unchanged.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        failed.incrementAndGet();
+                        plugin.getLogger().log(Level.SEVERE, "Error backing up: " + source.path(), e);
+                    }
+                }));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+
+            writeManifest(staging, manifest);
+            Files.move(staging.toPath(), generation.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | ExecutionException e) {
+            plugin.getLogger().log(Level.SEVERE, "Error creating backup " + generation.getName(), e);
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            pool.shutdownNow();
+        }
+
+        pruneGenerations();
+        plugin.getLogger().info("Backup " + generation.getName() + ": " + copied + " copied, " + unchanged + " unchanged, "
+                + failed + " failed in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    /**
+     * @return {@code true} when the file was copied, {@code false} when it was carried over unchanged
+     */
+    private boolean backupFile(BackupSource source, File staging, @Nullable File previous,
+                               Map<String, ManifestEntry> previousManifest, Map<String, ManifestEntry> manifest) throws IOException {
+        File target = new File(staging, source.path());
+        Files.createDirectories(target.getParentFile().toPath());
+
+        long size = source.file().length();
+        long lastModified = source.file().lastModified();
+        ManifestEntry previousEntry = previousManifest.get(source.path());
+        File previousCopy = previous != null ? new File(previous, source.path()) : null;
+
+        if (!source.alwaysCopy() && previousEntry != null && previousEntry.size() == size
+                && previousEntry.lastModified() == lastModified && previousCopy.exists()
+                && previousEntry.checksum() == checksum(source.file())) {
+            linkOrCopy(previousCopy.toPath(), target.toPath());
+            manifest.put(source.path(), previousEntry);
+            return false;
+        }
+
+        source.copier().copyTo(target.toPath());
+        if (!isValid(target)) {
+            Files.deleteIfExists(target.toPath());
+            if (previousEntry == null || !previousCopy.exists()) {
+                throw new IOException("Corrupted file, no earlier copy to keep");
+            }
+            plugin.getLogger().warning("Corrupted file " + source.path() + ", keeping the copy from " + previous.getName());
+            linkOrCopy(previousCopy.toPath(), target.toPath());
+            manifest.put(source.path(), previousEntry);
+            return false;
+        }
+
+        manifest.put(source.path(), new ManifestEntry(size, lastModified, checksum(target)));
+        return true;
+    }
+
+    /**
+     * Validates the formats that carry their own checksum. Other files are only checked for a sane header.
+     */
+    private static boolean isValid(File file) throws IOException {
+        String name = file.getName();
+        if (name.endsWith(BackpackCodec.EXTENSION)) return BackpackCodec.isValid(file);
+        if (name.endsWith(".gz")) {
+            try (InputStream in = new FileInputStream(file)) {
+                return in.read() == 0x1f && in.read() == 0x8b;
+            }
+        }
+        return true;
+    }
+
+    private static void linkOrCopy(Path source, Path target) throws IOException {
+        try {
+            Files.createLink(target, source);
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static long checksum(File file) throws IOException {
+        CRC32C crc = new CRC32C();
+        byte[] buffer = new byte[65536];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /* MANIFEST */
+
+    @Nonnull private Map<String, ManifestEntry> readManifest(File generation) {
+        Map<String, ManifestEntry> manifest = new HashMap<>();
+        File manifestFile = new File(generation, MANIFEST);
+        if (!manifestFile.exists()) return manifest;
+
+        try (BufferedReader reader = Files.newBufferedReader(manifestFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // Lines without a checksum are skipped, those files are copied again
+                String[] parts = line.split(" ", 4);
+                if (parts.length < 4) continue;
+                try {
+                    manifest.put(parts[3], new ManifestEntry(Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                            Long.parseLong(parts[0], 16)));
+                } catch (NumberFormatException ignored) {}
+            }
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not read backup manifest of " + generation.getName()
+                    + ", copying every file", e);
+        }
+        return manifest;
+    }
+
+    private void writeManifest(File staging, Map<String, ManifestEntry> manifest) throws IOException {
+        Files.createDirectories(staging.toPath());
+        try (BufferedWriter writer = Files.newBufferedWriter(new File(staging, MANIFEST).toPath(), StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, ManifestEntry> entry : new TreeMap<>(manifest).entrySet()) {
+                ManifestEntry value = entry.getValue();
+                writer.write(Long.toHexString(value.checksum()) + " " + value.size() + " " + value.lastModified()
+                        + " " + entry.getKey());
+                writer.newLine();
+            }
+        }
+    }
+
+    /* GENERATIONS */
+
+    @Nonnull private List<File> listGenerations() {
+        File[] folders = backupFolder.listFiles(file -> file.isDirectory() && GENERATION_NAME.matcher(file.getName()).matches());
+        if (folders == null) return new ArrayList<>();
+        List<File> generationFolders = new ArrayList<>(Arrays.asList(folders));
+        generationFolders.sort(Comparator.comparing(File::getName));
+        return generationFolders;
+    }
+
+    @Nonnull private File newGenerationFolder() {
+        String name = LocalDateTime.now().format(GENERATION_FORMAT);
+        File folder = new File(backupFolder, name);
+        for (int i = 1; folder.exists(); i++) {
+            folder = new File(backupFolder, name + "-" + i);
+        }
+        return folder;
+    }
+
+    private void pruneGenerations() {
+        List<File> existing = listGenerations();
+        for (int i = 0; i < existing.size() - generations; i++) {
+            try {
+                deleteRecursively(existing.get(i).toPath());
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Could not delete old backup " + existing.get(i).getName(), e);
+            }
+        }
+    }
+
+    private void deleteStagingFolders() {
+        File[] stale = backupFolder.listFiles(file -> file.isDirectory() && file.getName().endsWith(STAGING_SUFFIX));
+        if (stale == null) return;
+        for (File folder : stale) {
+            try {
+                deleteRecursively(folder.toPath());
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Could not delete unfinished backup " + folder.getName(), e);
+            }
+        }
+    }
+
+    private static void deleteRecursively(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package net.duart.virtualstorage.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A file to include in a backup, stored under {@code path} inside the backup, and how to copy it consistently.
+ * Unless {@code alwaysCopy} is set, a file whose size and modification time did not change is carried over from
+ * the previous backup.
+ */
+public record BackupSource(@Nonnull String path, @Nonnull File file, @Nonnull Copier copier, boolean alwaysCopy) {
+
+    public BackupSource(@Nonnull String path, @Nonnull File file, @Nonnull Copier copier) {
+        this(path, file, copier, false);
+    }
+
+    @FunctionalInterface
+    public interface Copier {
+        void copyTo(@Nonnull Path target) throws IOException;
+    }
+
+    /**
+     * A source whose file does not show every change, like a database that keeps recent commits in a separate log,
+     * so it is copied into every backup.
+     */
+    @Nonnull public static BackupSource alwaysCopied(@Nonnull String path, @Nonnull File file, @Nonnull Copier copier) {
+        return new BackupSource(path, file, copier, true);
+    }
+
+    /**
+     * A source copied while holding the given lock.
+     */
+    @Nonnull public static BackupSource locked(@Nonnull String path, @Nonnull File file, @Nullable Lock lock) {
+        return new BackupSource(path, file, target -> {
+            if (lock != null) lock.lock();
+            try {
+                Files.copy(file.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                if (lock != null) lock.unlock();
+            }
+        });
+    }
+}
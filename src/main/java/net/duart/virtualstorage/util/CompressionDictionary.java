@@ -0,0 +1,102 @@
+package net.duart.virtualstorage.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Preset deflate dictionaries kept in {@code dictionaries/<id>.dict}.
+ * <p>
+ * Backpack files record the id of the dictionary they were written with, so a dictionary is never
+ * replaced or deleted once installed; rebuilding adds a new one with the next id.
+ */
+public final class CompressionDictionary {
+
+    public static final int MAX_SIZE = 32 * 1024;
+
+    private static final String EXTENSION = ".dict";
+    private static final ConcurrentHashMap<Integer, byte[]> dictionaries = new ConcurrentHashMap<>();
+    private static volatile File folder;
+    private static volatile int currentId;
+
+    private CompressionDictionary() { }
+
+    /**
+     * Scans the dictionary folder. Synchronized with {@link #install} since {@code /vsreload} may run while a
+     * dictionary is being built.
+     */
+    public static synchronized void init(@Nonnull File dataFolder) {
+        folder = new File(dataFolder, "dictionaries");
+        dictionaries.clear();
+
+        int highestId = 0;
+        File[] files = folder.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (files != null) {
+            for (File file : files) {
+                highestId = Math.max(highestId, parseId(file.getName()));
+            }
+        }
+        currentId = highestId;
+    }
+
+    /**
+     * @return the id of the newest dictionary, or 0 when none has been built
+     */
+    public static int getCurrentId() {
+        return currentId;
+    }
+
+    @Nullable public static byte[] get(int id) throws IOException {
+        byte[] dictionary = dictionaries.get(id);
+        if (dictionary != null) return dictionary;
+
+        File file = new File(folder, id + EXTENSION);
+        if (!file.exists()) return null;
+        dictionary = Files.readAllBytes(file.toPath());
+        dictionaries.put(id, dictionary);
+        return dictionary;
+    }
+
+    /**
+     * Stores the dictionary under the next id and makes it the one new files are written with.
+     *
+     * @return the new dictionary id
+     */
+    public static synchronized int install(@Nonnull byte[] dictionary) throws IOException {
+        int id = currentId + 1;
+        Files.createDirectories(folder.toPath());
+
+        File file = new File(folder, id + EXTENSION);
+        File tempFile = new File(folder, id + EXTENSION + ".tmp");
+        Files.write(tempFile.toPath(), dictionary);
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        dictionaries.put(id, dictionary);
+        currentId = id;
+        return id;
+    }
+
+    @Nonnull public static List<BackupSource> getBackupSources() {
+        List<BackupSource> sources = new ArrayList<>();
+        File[] files = folder != null ? folder.listFiles((dir, name) -> name.endsWith(EXTENSION)) : null;
+        if (files != null) {
+            for (File file : files) {
+                sources.add(BackupSource.locked("dictionaries/" + file.getName(), file, null));
+            }
+        }
+        return sources;
+    }
+
+    private static int parseId(String fileName) {
+        try {
+            return Integer.parseInt(fileName.substring(0, fileName.length() - EXTENSION.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package net.duart.virtualstorage.util;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Builds a preset deflate dictionary from sample backpack bodies.
+ * <p>
+ * Byte runs made of 8-byte shingles that show up in many samples (item type keys, meta and NBT vocabulary)
+ * are ranked by how many bytes they cover and packed into the dictionary, best ones last since deflate
+ * encodes nearer matches more cheaply.
+ */
+public final class DictionaryTrainer {
+
+    private static final int SHINGLE = 8;
+    private static final int MAX_SEGMENT = 1024;
+
+    private DictionaryTrainer() { }
+
+    /**
+     * The trained dictionary and its effect on the samples that were held out of training.
+     */
+    public record Result(@Nonnull byte[] dictionary, int samples, long rawBytes, long deflatedBytes, long dictionaryBytes) { }
+
+    /**
+     * Trains on most of the samples and measures every fourth one against plain deflate at the given level.
+     */
+    @Nonnull public static Result train(@Nonnull List<byte[]> samples, int level) {
+        List<byte[]> training = new ArrayList<>();
+        List<byte[]> measured = new ArrayList<>();
+        for (int i = 0; i < samples.size(); i++) {
+            if (samples.size() >= 8 && i % 4 == 3) {
+                measured.add(samples.get(i));
+            } else {
+                training.add(samples.get(i));
+            }
+        }
+        if (measured.isEmpty()) measured = training;
+
+        byte[] dictionary = build(training, CompressionDictionary.MAX_SIZE);
+
+        long rawBytes = 0, deflatedBytes = 0, dictionaryBytes = 0;
+        for (byte[] sample : measured) {
+            rawBytes += sample.length;
+            deflatedBytes += BackpackCodec.compress(sample, level, null).length;
+            dictionaryBytes += BackpackCodec.compress(sample, level, dictionary).length;
+        }
+        return new Result(dictionary, samples.size(), rawBytes, deflatedBytes, dictionaryBytes);
+    }
+
+    @Nonnull private static byte[] build(List<byte[]> samples, int maxSize) {
+        Map<Long, Integer> sampleFrequency = new HashMap<>();
+        for (byte[] sample : samples) {
+            Set<Long> seen = new HashSet<>();
+            for (int i = 0; i + SHINGLE <= sample.length; i++) {
+                long shingle = shingle(sample, i);
+                if (seen.add(shingle)) sampleFrequency.merge(shingle, 1, Integer::sum);
+            }
+        }
+
+        int threshold = Math.max(2, samples.size() / 10);
+        Map<ByteBuffer, Long> segmentScores = new HashMap<>();
+        for (byte[] sample : samples) {
+            int i = 0;
+            while (i + SHINGLE <= sample.length) {
+                if (sampleFrequency.getOrDefault(shingle(sample, i), 0) < threshold) {
+                    i++;
+                    continue;
+                }
+
+                int start = i;
+                while (i + SHINGLE <= sample.length && i - start < MAX_SEGMENT
+                        && sampleFrequency.getOrDefault(shingle(sample, i), 0) >= threshold) {
+                    i++;
+                }
+                byte[] segment = Arrays.copyOfRange(sample, start, i - 1 + SHINGLE);
+                segmentScores.merge(ByteBuffer.wrap(segment), (long) segment.length, Long::sum);
+            }
+        }
+
+        List<Map.Entry<ByteBuffer, Long>> ranked = new ArrayList<>(segmentScores.entrySet());
+        ranked.sort(Map.Entry.<ByteBuffer, Long>comparingByValue().reversed());
+
+        List<byte[]> chosen = new ArrayList<>();
+        int size = 0;
+        for (Map.Entry<ByteBuffer, Long> entry : ranked) {
+            byte[] segment = entry.getKey().array();
+            if (size + segment.length > maxSize) continue;
+            chosen.add(segment);
+            size += segment.length;
+        }
+
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream(size);
+        for (int i = chosen.size() - 1; i >= 0; i--) {
+            dictionary.writeBytes(chosen.get(i));
+        }
+        return dictionary.toByteArray();
+    }
+
+    private static long shingle(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < SHINGLE; i++) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
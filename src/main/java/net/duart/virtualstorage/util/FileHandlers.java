@@ -1,244 +1,529 @@
 package net.duart.virtualstorage.util;
 
-import org.bukkit.Bukkit;
-import org.bukkit.Material;
-import org.bukkit.NamespacedKey;
 import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.file.YamlConfiguration;
-import org.bukkit.entity.Player;
-import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.ItemStack;
-import org.bukkit.inventory.meta.ItemMeta;
-import org.bukkit.persistence.PersistentDataType;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.util.io.BukkitObjectInputStream;
-import org.bukkit.util.io.BukkitObjectOutputStream;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiPredicate;
 import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
-public class FileHandlers {
+public class FileHandlers implements StorageBackend {
     private final Plugin plugin;
-    private final ReentrantLock fileLock = new ReentrantLock();
-    private final NamespacedKey NAV_KEY;
+    private final ReentrantLock[] fileLocks = new ReentrantLock[LOCK_STRIPES];
+    private final File playersFolder;
+    private final PlayerNameIndex nameIndex;
+    private final ConcurrentHashMap<UUID, List<File>> legacyFiles = new ConcurrentHashMap<>();
+    private volatile boolean legacyFormatsPending = true;
+    private final CompletableFuture<Void> layoutMigration = new CompletableFuture<>();
+    private final ExecutorService layoutMigrator;
+    private final LegacyFormatMigration formatMigration;
+
+    private final boolean journalMode;
+    private final long journalMaxBytes;
+    private final int journalMaxRecords;
+    private final ConcurrentHashMap<UUID, Integer> journalRecords = new ConcurrentHashMap<>();
+    private final Set<UUID> queuedCompactions = ConcurrentHashMap.newKeySet();
+    private final ExecutorService compactor;
+    @Nullable private final AtomicFileWriter groupWriter;
+
+    private static final int LOCK_STRIPES = 64;
+    private static final String PLAYERS_FOLDER = "players";
+    private static final String OVERFLOW_SUFFIX = "-overflow.yml.gz";
+    private static final String LEGACY_OVERFLOW_SUFFIX = "-overflow-.yml.gz";
+    private static final List<String> BACKPACK_SUFFIXES =
+            List.of(BackpackCodec.EXTENSION, BackpackJournal.EXTENSION, ".yml.gz", ".yml");
+    private static final Pattern UUID_PATTERN =
+            Pattern.compile("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
 
     public FileHandlers(Plugin plugin) {
         this.plugin = plugin;
-        NAV_KEY = new NamespacedKey(plugin, "navarrow");
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            fileLocks[i] = new ReentrantLock();
+        }
+        playersFolder = new File(plugin.getDataFolder(), PLAYERS_FOLDER);
+        nameIndex = new PlayerNameIndex(plugin);
+
+        journalMode = plugin.getConfig().getString("storage.mode", "file").equalsIgnoreCase("journal");
+        journalMaxBytes = plugin.getConfig().getLong("storage.journal.max-bytes", 256 * 1024);
+        journalMaxRecords = plugin.getConfig().getInt("storage.journal.max-records", 256);
+        compactor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "VirtualStorages-Compactor");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+
+        groupWriter = plugin.getConfig().getBoolean("storage.group-commit.enabled", true)
+                ? new AtomicFileWriter(plugin.getConfig().getInt("storage.group-commit.sync-threads", 4)) : null;
+
+        // Separate from the compactor, so compactions are not held up behind the whole migration
+        layoutMigrator = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "VirtualStorages-LayoutMigration");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        formatMigration = new LegacyFormatMigration(plugin, this);
+        startLegacyMigration();
+        plugin.getServer().getScheduler().runTask(plugin, () -> layoutMigration.thenRun(formatMigration::start));
     }
 
-    public record BackpackData(Map<Integer, Map<Integer, ItemStack>> pages, int pageCount) { }
-
     /* REGULAR SAVING */
 
-    public void saveBackpackInventory(@Nonnull Player player, @Nonnull UUID playerId, @Nonnull ArrayList<Inventory> pages) {
-        savePlayerBackpackAtomic(player.getName(), playerId, pages);
+    @Override
+    public boolean save(@Nonnull BackpackSnapshot snapshot) {
+        UUID targetId = snapshot.playerId();
+        if (snapshot.playerName() != null) nameIndex.update(targetId, snapshot.playerName());
+        ensureMigrated(targetId);
+
+        if (journalMode && appendToJournal(targetId, snapshot)) return true;
+        return savePlayerBackpackAtomic(targetId, snapshot.pages());
     }
 
-    public void saveBackpackInventoryForTarget(UUID targetId, ArrayList<Inventory> pages) {
-        Player targetPlayer = Bukkit.getPlayer(targetId);
-        if (targetPlayer == null) {
-            String playerName;
-            File dataFolder = plugin.getDataFolder();
-            File[] files = dataFolder.listFiles((dir, name) ->
-                    name.contains(targetId.toString()) && (name.endsWith(".yml.gz") || name.endsWith(".yml"))
-            );
+    /**
+     * With group commit, every full save in the batch is staged and synced together, then moved into place
+     * under its player's lock.
+     */
+    @Override
+    @Nonnull public Set<UUID> saveAll(@Nonnull Collection<BackpackSnapshot> snapshots) {
+        if (groupWriter == null || snapshots.size() < 2) {
+            return StorageBackend.super.saveAll(snapshots);
+        }
 
-            if (files != null && files.length > 0) {
-                String fileName = files[0].getName();
-                playerName = fileName.substring(0, fileName.indexOf(" - "));
-            } else {
-                plugin.getLogger().warning("Target player not found and no existing file: " + targetId);
-                return;
+        Set<UUID> failed = new HashSet<>();
+        Map<AtomicFileWriter.Write, UUID> owners = new IdentityHashMap<>();
+        List<AtomicFileWriter.Write> writes = new ArrayList<>(snapshots.size());
+        for (BackpackSnapshot snapshot : snapshots) {
+            UUID targetId = snapshot.playerId();
+            if (snapshot.playerName() != null) nameIndex.update(targetId, snapshot.playerName());
+            ensureMigrated(targetId);
+
+            if (journalMode && appendToJournal(targetId, snapshot)) continue;
+            try {
+                AtomicFileWriter.Write write = new AtomicFileWriter.Write(playerFile(targetId, BackpackCodec.EXTENSION),
+                        BackpackCodec.encode(snapshot.pages()));
+                writes.add(write);
+                owners.put(write, targetId);
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.SEVERE, "Error encoding backpack data for player " + targetId, e);
+                failed.add(targetId);
             }
-
-            savePlayerBackpackAtomic(playerName, targetId, pages);
-        } else {
-            savePlayerBackpackAtomic(targetPlayer.getName(), targetId, pages);
         }
+        if (writes.isEmpty()) return failed;
+
+        Map<AtomicFileWriter.Write, IOException> failures = new IdentityHashMap<>();
+        List<AtomicFileWriter.Staged> staged = groupWriter.stage(writes, failures);
+        failures.forEach((write, e) -> {
+            plugin.getLogger().log(Level.SEVERE, "Error saving backpack for player " + owners.get(write), e);
+            failed.add(owners.get(write));
+        });
+
+        List<AtomicFileWriter.Staged> committed = new ArrayList<>(staged.size());
+        for (AtomicFileWriter.Staged file : staged) {
+            UUID playerId = owners.get(file.write());
+            ReentrantLock fileLock = lockFor(playerId);
+            try {
+                fileLock.lock();
+                file.commit();
+                committed.add(file);
+                removeSupersededFiles(playerId);
+            } catch (IOException e) {
+                file.discard();
+                plugin.getLogger().log(Level.SEVERE, "Error saving backpack for player " + playerId, e);
+                failed.add(playerId);
+            } finally {
+                fileLock.unlock();
+            }
+        }
+        groupWriter.syncDirectories(committed);
+        return failed;
     }
 
-    private void savePlayerBackpackAtomic(String playerName, UUID playerId, @Nonnull ArrayList<Inventory> pages) {
-        File playerFile = new File(plugin.getDataFolder(), playerName + " - " + playerId + ".yml.gz");
-        File tempFile = new File(plugin.getDataFolder(), playerName + " - " + playerId + ".tmp.yml.gz");
-
-        YamlConfiguration targetConfig = new YamlConfiguration();
-        for (int i = 0; i < pages.size(); i++) {
-            Inventory page = pages.get(i);
-            for (int slot = 0; slot < page.getSize(); slot++) {
-                ItemStack item = page.getItem(slot);
-                if (item != null && isNotNavigationItem(item)) {
-                    targetConfig.set("pages." + i + ".slot" + slot, item);
-                } else {
-                    targetConfig.set("pages." + i + ".slot" + slot, null);
-                }
-            }
+    private boolean savePlayerBackpackAtomic(UUID playerId, @Nonnull List<ItemStack[]> pageContents) {
+        byte[] encodedData;
+        try {
+            encodedData = BackpackCodec.encode(pageContents);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Error encoding backpack data for player " + playerId, e);
+            return false;
         }
-        String yamlContent = targetConfig.saveToString();
 
-        byte[] compressedData;
+        ReentrantLock fileLock = lockFor(playerId);
         try {
-            ByteArrayOutputStream byteOutput = new ByteArrayOutputStream();
-            try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(byteOutput);
-                 OutputStreamWriter outputWriter = new OutputStreamWriter(gzipOutputStream)) {
-                outputWriter.write(yamlContent);
-                outputWriter.flush();
-                gzipOutputStream.finish();
-            }
-            compressedData = byteOutput.toByteArray();
+            fileLock.lock();
+            writeAtomically(playerFile(playerId, BackpackCodec.EXTENSION), encodedData);
+            removeSupersededFiles(playerId);
+            return true;
         } catch (IOException e) {
-            plugin.getLogger().log(Level.SEVERE, "Error compressing backpack data for player " + playerId, e);
-            return;
+            plugin.getLogger().log(Level.SEVERE, "Error saving backpack for player " + playerId, e);
+            return false;
+        } finally {
+            fileLock.unlock();
         }
+    }
+
+    /**
+     * Removes the journal and legacy files that a freshly written backpack file replaces. Needs the player's lock.
+     */
+    private void removeSupersededFiles(UUID playerId) throws IOException {
+        Files.deleteIfExists(playerFile(playerId, BackpackJournal.EXTENSION).toPath());
+        Files.deleteIfExists(playerFile(playerId, ".yml.gz").toPath());
+        Files.deleteIfExists(playerFile(playerId, ".yml").toPath());
+        journalRecords.remove(playerId);
+    }
+
+    /**
+     * Writes to a temporary sibling, syncs it and moves it over the target.
+     */
+    private void writeAtomically(@Nonnull File target, @Nonnull byte[] data) throws IOException {
+        AtomicFileWriter.write(target, data);
+    }
 
+    @Override
+    @Nullable public BackpackData load(@Nonnull UUID playerId, @Nullable String playerName) {
+        if (playerName != null) nameIndex.update(playerId, playerName);
+        ensureMigrated(playerId);
+
+        ReentrantLock fileLock = lockFor(playerId);
         try {
             fileLock.lock();
-            try (FileOutputStream fileOutputStream = new FileOutputStream(tempFile)) {
-                fileOutputStream.write(compressedData);
-                fileOutputStream.flush();
-                fileOutputStream.getFD().sync();
+            // Looked up under the lock, a format conversion replaces the file while holding it
+            File backpackFile = findBackpackFile(playerId);
+            if (backpackFile == null) return null;
+
+            if (backpackFile.getName().endsWith(BackpackCodec.EXTENSION)) {
+                return readWithJournal(playerId, backpackFile);
             }
-            Files.move(tempFile.toPath(), playerFile.toPath(),
-                    java.nio.file.StandardCopyOption.REPLACE_EXISTING,
-                    java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+            return readLegacyFile(playerId, backpackFile);
         } catch (IOException e) {
-            plugin.getLogger().log(Level.SEVERE, "Error saving backpack YAML for player " + playerId, e);
-            if (tempFile.exists()) {
-                try {
-                    Files.delete(tempFile.toPath());
-                } catch (IOException ex) {
-                    plugin.getLogger().log(Level.WARNING, "Failed to delete temp file", ex);
-                }
-            }
+            throw new UncheckedIOException("Error loading backpack data for player " + playerId, e);
         } finally {
             fileLock.unlock();
         }
     }
 
-    public BackpackData loadBackpackData(UUID playerId, @Nonnull File file) {
+    /**
+     * Reads backpacks without replaying journals into their base file, truncating damaged journals or scheduling
+     * compaction, and without moving files out of the legacy layout.
+     */
+    @Override
+    public void sampleBackpacks(@Nonnull BiPredicate<UUID, BackpackData> visitor) {
+        List<UUID> players = new ArrayList<>(listPlayers());
+        Collections.shuffle(players);
+
+        for (UUID playerId : players) {
+            BackpackData data;
+            ReentrantLock fileLock = lockFor(playerId);
+            try {
+                fileLock.lock();
+                File backpackFile = findBackpackFile(playerId);
+                if (backpackFile == null) continue;
+
+                data = backpackFile.getName().endsWith(BackpackCodec.EXTENSION)
+                        ? readBaseAndJournal(backpackFile, journalFileFor(backpackFile)).data()
+                        : readLegacyFile(playerId, backpackFile);
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Skipping unreadable backpack of player " + playerId, e);
+                continue;
+            } finally {
+                fileLock.unlock();
+            }
+            if (!visitor.test(playerId, data)) return;
+        }
+    }
+
+    /**
+     * Once the legacy format migration has finished, only the binary file needs to be probed. Needs the player's lock.
+     */
+    @Nullable private File findBackpackFile(UUID playerId) {
+        File binaryFile = playerFile(playerId, BackpackCodec.EXTENSION);
+        if (binaryFile.exists() || !legacyFormatsPending) return binaryFile.exists() ? binaryFile : null;
+
+        for (String extension : new String[]{".yml.gz", ".yml"}) {
+            File file = playerFile(playerId, extension);
+            if (file.exists()) return file;
+        }
+        return null;
+    }
+
+    /**
+     * Reads a {@code .yml} or {@code .yml.gz} backpack.
+     *
+     * @throws IOException when the file can be read neither as GZIP nor as plain YAML, or is not valid YAML
+     */
+    private BackpackData readLegacyFile(UUID playerId, @Nonnull File file) throws IOException {
         Map<Integer, Map<Integer, ItemStack>> pagesData = new HashMap<>();
         int storedPageCount = 0;
-
-        try {
-            fileLock.lock();
-            YamlConfiguration playerConfig;
-
-            if (file.getName().endsWith(".yml.gz")) {
-                try (FileInputStream fileInputStream = new FileInputStream(file);
-                     GZIPInputStream gzipInputStream = new GZIPInputStream(fileInputStream);
-                     InputStreamReader inputStreamReader = new InputStreamReader(gzipInputStream);
-                     BufferedReader reader = new BufferedReader(inputStreamReader)) {
-                    playerConfig = YamlConfiguration.loadConfiguration(reader);
-                } catch (java.util.zip.ZipException e) {
-                    plugin.getLogger().warning("Corrupted GZIP file detected for player " + playerId + ", attempting to read as plain YAML");
-
-                    try {
-                        playerConfig = YamlConfiguration.loadConfiguration(file);
-                    } catch (Exception e2) {
-                        plugin.getLogger().log(Level.SEVERE, "Failed to read file even as plain YAML for player " + playerId, e2);
-                        return new BackpackData(pagesData, storedPageCount);
-                    }
+        YamlConfiguration playerConfig;
+
+        if (file.getName().endsWith(".yml.gz")) {
+            try (FileInputStream fileInputStream = new FileInputStream(file);
+                 GZIPInputStream gzipInputStream = new GZIPInputStream(fileInputStream);
+                 InputStreamReader inputStreamReader = new InputStreamReader(gzipInputStream);
+                 BufferedReader reader = new BufferedReader(inputStreamReader)) {
+                playerConfig = parseYaml(reader);
+            } catch (java.util.zip.ZipException e) {
+                plugin.getLogger().warning("Corrupted GZIP file detected for player " + playerId + ", attempting to read as plain YAML");
+
+                try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                    playerConfig = parseYaml(reader);
+                } catch (IOException e2) {
+                    throw new IOException("Failed to read file even as plain YAML for player " + playerId, e2);
+                }
+                if (playerConfig.getConfigurationSection("pages") == null) {
+                    throw new IOException("Failed to read file even as plain YAML for player " + playerId, e);
                 }
-            } else {
-                playerConfig = YamlConfiguration.loadConfiguration(file);
             }
+        } else {
+            try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                playerConfig = parseYaml(reader);
+            }
+        }
 
-            ConfigurationSection pagesSection = playerConfig.getConfigurationSection("pages");
-            if (pagesSection != null) {
-                for (String key : pagesSection.getKeys(false)) {
-                    try {
-                        int pageIdx = Integer.parseInt(key);
-                        if (pageIdx + 1 > storedPageCount) storedPageCount = pageIdx + 1;
-
-                        ConfigurationSection pageSection = playerConfig.getConfigurationSection("pages." + pageIdx);
-                        if (pageSection != null) {
-                            Map<Integer, ItemStack> pageItems = new HashMap<>();
-                            for (String slotKey : pageSection.getKeys(false)) {
-                                ItemStack item = pageSection.getItemStack(slotKey);
-                                if (item != null) {
-                                    int slotIndex = Integer.parseInt(slotKey.replace("slot", ""));
-                                    pageItems.put(slotIndex, item);
-                                }
+        ConfigurationSection pagesSection = playerConfig.getConfigurationSection("pages");
+        if (pagesSection != null) {
+            for (String key : pagesSection.getKeys(false)) {
+                try {
+                    int pageIdx = Integer.parseInt(key);
+                    if (pageIdx + 1 > storedPageCount) storedPageCount = pageIdx + 1;
+
+                    ConfigurationSection pageSection = playerConfig.getConfigurationSection("pages." + pageIdx);
+                    if (pageSection != null) {
+                        Map<Integer, ItemStack> pageItems = new HashMap<>();
+                        for (String slotKey : pageSection.getKeys(false)) {
+                            ItemStack item = pageSection.getItemStack(slotKey);
+                            if (item != null) {
+                                int slotIndex = Integer.parseInt(slotKey.replace("slot", ""));
+                                pageItems.put(slotIndex, item);
                             }
-                            pagesData.put(pageIdx, pageItems);
                         }
-                    } catch (NumberFormatException ignored) {}
-                }
+                        pagesData.put(pageIdx, pageItems);
+                    }
+                } catch (NumberFormatException ignored) {}
             }
+        }
+
+        return new BackpackData(pagesData, storedPageCount);
+    }
+
+    /**
+     * Unlike {@link YamlConfiguration#loadConfiguration}, fails on broken YAML instead of returning an empty configuration.
+     */
+    @Nonnull private static YamlConfiguration parseYaml(@Nonnull Reader reader) throws IOException {
+        YamlConfiguration config = new YamlConfiguration();
+        try {
+            config.load(reader);
+        } catch (InvalidConfigurationException e) {
+            throw new IOException("Invalid YAML", e);
+        }
+        return config;
+    }
+
+    /* JOURNAL */
+
+    /**
+     * Appends the snapshot's dirty pages to the journal next to an existing {@code .vsb} base file.
+     *
+     * @return {@code false} when there is no binary base yet and a full write is needed
+     */
+    private boolean appendToJournal(UUID playerId, @Nonnull BackpackSnapshot snapshot) {
+        File baseFile = playerFile(playerId, BackpackCodec.EXTENSION);
+        File journalFile = playerFile(playerId, BackpackJournal.EXTENSION);
+
+        ReentrantLock fileLock = lockFor(playerId);
+        long journalLength;
+        int records;
+        try {
+            fileLock.lock();
+            if (!baseFile.exists()) return false;
+
+            BackpackJournal.append(journalFile, snapshot.pages(), snapshot.dirtyPages());
+            journalLength = journalFile.length();
+            records = journalRecords.merge(playerId, 1, Integer::sum);
         } catch (IOException e) {
-            plugin.getLogger().log(Level.SEVERE, "Error loading backpack data for player " + playerId, e);
+            plugin.getLogger().log(Level.SEVERE, "Error appending to backpack journal for player " + playerId
+                    + ", falling back to a full save", e);
+            return false;
         } finally {
             fileLock.unlock();
         }
 
-        return new BackpackData(pagesData, storedPageCount);
+        if (journalLength > journalMaxBytes || records > journalMaxRecords) {
+            scheduleCompaction(playerId, baseFile, journalFile);
+        }
+        return true;
     }
 
-    /* OVERFLOW */
+    private BackpackData readWithJournal(UUID playerId, @Nonnull File baseFile) throws IOException {
+        File journalFile = journalFileFor(baseFile);
+        BackpackJournal.Replay replay = readBaseAndJournal(baseFile, journalFile);
+        if (!journalFile.exists()) return replay.data();
 
-    public void saveOverflowItems(UUID playerId, @Nonnull List<ItemStack> overflowItems) {
-        if (overflowItems.isEmpty()) return;
+        if (replay.validLength() < journalFile.length()) {
+            plugin.getLogger().warning("Discarding damaged tail of backpack journal for player " + playerId);
+            try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(replay.validLength());
+            }
+        }
+        journalRecords.put(playerId, replay.records());
 
-        File overflowFile = new File(plugin.getDataFolder(), playerId + "-overflow-" + ".yml.gz");
-        File tempFile = new File(plugin.getDataFolder(), playerId + "-overflow-" + ".tmp.yml.gz");
+        if (journalFile.length() > journalMaxBytes || replay.records() > journalMaxRecords) {
+            scheduleCompaction(playerId, baseFile, journalFile);
+        }
+        return replay.data();
+    }
+
+    /**
+     * Decodes the base file and replays its journal, if any, without changing either.
+     */
+    @Nonnull private BackpackJournal.Replay readBaseAndJournal(@Nonnull File baseFile, @Nonnull File journalFile) throws IOException {
+        BackpackData data = BackpackCodec.decode(Files.readAllBytes(baseFile.toPath()));
+        if (!journalFile.exists()) return new BackpackJournal.Replay(data, 0, 0);
+        return BackpackJournal.replay(journalFile, data);
+    }
+
+    @Nonnull private static File journalFileFor(@Nonnull File baseFile) {
+        String fileName = baseFile.getName();
+        return new File(baseFile.getParentFile(),
+                fileName.substring(0, fileName.length() - BackpackCodec.EXTENSION.length()) + BackpackJournal.EXTENSION);
+    }
+
+    private void scheduleCompaction(UUID playerId, File baseFile, File journalFile) {
+        if (!queuedCompactions.add(playerId)) return;
 
-        byte[] serializedData;
         try {
-            ByteArrayOutputStream byteOutput = new ByteArrayOutputStream();
-            try (GZIPOutputStream gos = new GZIPOutputStream(byteOutput);
-                 BukkitObjectOutputStream oos = new BukkitObjectOutputStream(gos)) {
+            compactor.execute(() -> {
+                queuedCompactions.remove(playerId);
+                compactJournal(playerId, baseFile, journalFile);
+            });
+        } catch (RejectedExecutionException e) {
+            queuedCompactions.remove(playerId);
+        }
+    }
 
-                oos.writeInt(overflowItems.size());
-                for (ItemStack item : overflowItems) {
-                    oos.writeObject(item);
-                }
+    private void compactJournal(UUID playerId, File baseFile, File journalFile) {
+        ReentrantLock fileLock = lockFor(playerId);
+        try {
+            fileLock.lock();
+            if (!baseFile.exists() || !journalFile.exists()) return;
 
-                oos.flush();
-                gos.finish();
-            }
-            serializedData = byteOutput.toByteArray();
+            BackpackData base = BackpackCodec.decode(Files.readAllBytes(baseFile.toPath()));
+            BackpackData merged = BackpackJournal.replay(journalFile, base).data();
+
+            writeAtomically(baseFile, BackpackCodec.encode(merged.toPageContents()));
+            Files.delete(journalFile.toPath());
+            journalRecords.remove(playerId);
         } catch (IOException e) {
-            plugin.getLogger().log(Level.SEVERE, "Error serializing overflow items for " + playerId, e);
-            return;
+            plugin.getLogger().log(Level.SEVERE, "Error compacting backpack journal for player " + playerId, e);
+        } finally {
+            fileLock.unlock();
         }
+    }
 
+    @Override
+    public void shutdown() {
+        formatMigration.stop();
+        if (groupWriter != null) groupWriter.shutdown();
+        layoutMigrator.shutdown();
+        compactor.shutdown();
         try {
-            try (FileOutputStream fos = new FileOutputStream(tempFile)) {
-                fos.write(serializedData);
-                fos.flush();
-                fos.getFD().sync();
+            if (!layoutMigrator.awaitTermination(30, TimeUnit.SECONDS)) {
+                plugin.getLogger().warning("Timed out waiting for the backpack folder migration to pause");
+            }
+            if (!compactor.awaitTermination(30, TimeUnit.SECONDS)) {
+                plugin.getLogger().warning("Timed out waiting for backpack journal compaction");
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* OVERFLOW */
+
+    @Override
+    public void appendOverflowItems(@Nonnull UUID playerId, @Nonnull List<ItemStack> overflowItems) {
+        if (overflowItems.isEmpty()) return;
+        ensureMigrated(playerId);
+
+        ReentrantLock fileLock = lockFor(playerId);
+        try {
+            fileLock.lock();
+            File overflowLog = playerFile(playerId, OverflowLog.EXTENSION);
+            Files.createDirectories(overflowLog.getParentFile().toPath());
+            OverflowLog.append(overflowLog, overflowItems);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Error appending overflow items for " + playerId, e);
+        } finally {
+            fileLock.unlock();
+        }
+    }
 
-            Files.move(tempFile.toPath(), overflowFile.toPath(),
-                    java.nio.file.StandardCopyOption.REPLACE_EXISTING,
-                    java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+    @Override
+    public void saveOverflowItems(@Nonnull UUID playerId, @Nonnull List<ItemStack> overflowItems) {
+        if (overflowItems.isEmpty()) return;
+        ensureMigrated(playerId);
 
+        ReentrantLock fileLock = lockFor(playerId);
+        try {
+            fileLock.lock();
+            writeAtomically(playerFile(playerId, OverflowLog.EXTENSION), OverflowLog.encode(overflowItems));
+            Files.deleteIfExists(playerFile(playerId, OVERFLOW_SUFFIX).toPath());
         } catch (IOException e) {
             plugin.getLogger().log(Level.SEVERE, "Error saving overflow items for " + playerId, e);
+        } finally {
+            fileLock.unlock();
+        }
+    }
 
-            if (tempFile.exists()) {
-                try {
-                    Files.delete(tempFile.toPath());
-                } catch (IOException ex) {
-                    plugin.getLogger().log(Level.WARNING, "Failed to delete temp overflow file", ex);
-                }
+    @Override
+    @Nonnull public List<ItemStack> peekOverflowItems(@Nonnull UUID playerId) {
+        ensureMigrated(playerId);
+        File legacyFile = playerFile(playerId, OVERFLOW_SUFFIX);
+        File overflowLog = playerFile(playerId, OverflowLog.EXTENSION);
+        List<ItemStack> overflowItems = new ArrayList<>();
+
+        ReentrantLock fileLock = lockFor(playerId);
+        try {
+            fileLock.lock();
+            if (legacyFile.exists()) {
+                overflowItems.addAll(readLegacyOverflow(legacyFile));
+            }
+            if (overflowLog.exists()) {
+                overflowItems.addAll(OverflowLog.read(overflowLog));
             }
+        } catch (IOException | ClassNotFoundException e) {
+            plugin.getLogger().log(Level.SEVERE, "Error loading overflow items for " + playerId, e);
+        } finally {
+            fileLock.unlock();
         }
+
+        return overflowItems;
     }
 
-    public List<ItemStack> loadOverflowItems(UUID playerId) {
-        File overflowFile = new File(plugin.getDataFolder(), playerId + "-overflow-" + ".yml.gz");
+    /**
+     * Reads an overflow file written by older versions with Java serialization.
+     */
+    private List<ItemStack> readLegacyOverflow(File legacyFile) throws IOException, ClassNotFoundException {
         List<ItemStack> overflowItems = new ArrayList<>();
-        if (!overflowFile.exists()) return overflowItems;
-
-        try (FileInputStream fis = new FileInputStream(overflowFile);
+        try (FileInputStream fis = new FileInputStream(legacyFile);
              GZIPInputStream gis = new GZIPInputStream(fis);
              BukkitObjectInputStream ois = new BukkitObjectInputStream(gis)) {
 
@@ -246,76 +531,274 @@ public class FileHandlers {
             for (int i = 0; i < size; i++) {
                 overflowItems.add((ItemStack) ois.readObject());
             }
+        }
+        return overflowItems;
+    }
 
-        } catch (IOException | ClassNotFoundException e) {
-            plugin.getLogger().log(Level.SEVERE, "Error loading overflow items for " + playerId, e);
-            return overflowItems;
+    @Override
+    public void deleteOverflowItems(@Nonnull UUID playerId) {
+        ensureMigrated(playerId);
+        ReentrantLock fileLock = lockFor(playerId);
+        try {
+            fileLock.lock();
+            Files.deleteIfExists(playerFile(playerId, OverflowLog.EXTENSION).toPath());
+            Files.deleteIfExists(playerFile(playerId, OVERFLOW_SUFFIX).toPath());
+        } catch (IOException e) {
+            plugin.getLogger().warning("Failed to delete overflow file for player: " + playerId);
+        } finally {
+            fileLock.unlock();
         }
+    }
 
-        if (!overflowFile.delete()) {
-            plugin.getLogger().warning("Could not delete overflow file for player " + playerId);
+    /* PLAYERS */
+
+    @Override
+    @Nonnull public Collection<UUID> listPlayers() {
+        Set<UUID> players = new HashSet<>();
+        for (File file : listPlayerFiles()) {
+            UUID playerId = parsePlayerId(file.getName());
+            if (playerId != null) players.add(playerId);
         }
+        players.addAll(legacyFiles.keySet());
+        return players;
+    }
 
-        return overflowItems;
+    @Override
+    public void delete(@Nonnull UUID playerId) {
+        ensureMigrated(playerId);
+        ReentrantLock fileLock = lockFor(playerId);
+        try {
+            fileLock.lock();
+            for (String suffix : BACKPACK_SUFFIXES) {
+                Files.deleteIfExists(playerFile(playerId, suffix).toPath());
+            }
+            Files.deleteIfExists(playerFile(playerId, OVERFLOW_SUFFIX).toPath());
+            Files.deleteIfExists(playerFile(playerId, OverflowLog.EXTENSION).toPath());
+            journalRecords.remove(playerId);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Error deleting backpack files for player " + playerId, e);
+        } finally {
+            fileLock.unlock();
+        }
     }
 
-    /* HELPER */
+    /* LEGACY LAYOUT MIGRATION */
 
-    private boolean isNotNavigationItem(ItemStack item) {
-        if (item == null || item.getType() != Material.ARROW) return true;
-        ItemMeta meta = item.getItemMeta();
-        return meta == null ||
-                !meta.getPersistentDataContainer().has(NAV_KEY, PersistentDataType.BYTE);
+    /**
+     * Lists the data folder once; players are looked up in the result and dropped from it once moved.
+     */
+    private void startLegacyMigration() {
+        legacyFiles.putAll(findLegacyFiles());
+        if (!legacyFiles.isEmpty()) {
+            layoutMigrator.execute(this::migrateLegacyLayout);
+        } else {
+            layoutMigration.complete(null);
+        }
     }
 
-    public void createBackup() {
-        File dataFolder = plugin.getDataFolder();
-        File backupFolder = new File(dataFolder, "backup");
-        if (!backupFolder.exists()) {
-            if (!backupFolder.mkdirs()) {
-                plugin.getLogger().log(Level.SEVERE, "Error creating backup directory");
+    private void migrateLegacyLayout() {
+        plugin.getLogger().info("Moving " + legacyFiles.size() + " backpacks to the " + PLAYERS_FOLDER + "/ folder...");
+
+        for (UUID playerId : new ArrayList<>(legacyFiles.keySet())) {
+            if (layoutMigrator.isShutdown()) {
+                plugin.getLogger().info("Backpack folder migration paused, it will continue on the next start");
                 return;
             }
+            ensureMigrated(playerId);
         }
 
-        File[] files = dataFolder.listFiles((dir, name) ->
-                name.endsWith(".yml") || name.endsWith(".yml.gz"));
+        layoutMigration.complete(null);
+        plugin.getLogger().info("Backpack folder migration finished");
+    }
 
-        if (files != null) {
-            for (File file : files) {
-                try {
-                    fileLock.lock();
+    /**
+     * Moves the player's files out of the old flat layout before they are touched,
+     * so the background migration never overwrites newer data.
+     */
+    private void ensureMigrated(UUID playerId) {
+        if (legacyFiles.isEmpty()) return;
 
-                    if (file.getName().endsWith(".yml.gz")) {
-                        if (!isValidGZIPFile(file)) {
-                            plugin.getLogger().warning("Skipping corrupted file: " + file.getName());
-                            continue;
-                        }
-                    }
+        // Still listed while being moved, so a concurrent caller waits for the move on the player's lock
+        List<File> files = legacyFiles.get(playerId);
+        if (files != null && migratePlayer(playerId, files)) legacyFiles.remove(playerId, files);
+    }
 
-                    File backupFile = new File(backupFolder, file.getName());
-                    Files.copy(file.toPath(), backupFile.toPath(),
-                            StandardCopyOption.REPLACE_EXISTING);
+    /**
+     * Finds files stored as {@code "<name> - <uuid>.<ext>"} or {@code "<uuid>-overflow-.yml.gz"} in the data folder.
+     */
+    @Nonnull private Map<UUID, List<File>> findLegacyFiles() {
+        Map<UUID, List<File>> filesByPlayer = new HashMap<>();
+        File[] files = plugin.getDataFolder().listFiles((dir, name) -> isBackpackFileName(name));
+        if (files == null) return filesByPlayer;
+
+        for (File file : files) {
+            UUID fileOwner = parsePlayerId(file.getName());
+            if (fileOwner == null || !file.isFile() || legacySuffix(file.getName(), fileOwner) == null) continue;
+            filesByPlayer.computeIfAbsent(fileOwner, k -> new ArrayList<>()).add(file);
+        }
+        return filesByPlayer;
+    }
 
-                } catch (IOException e) {
-                    plugin.getLogger().log(Level.SEVERE, "Error backing up: " + file.getName(), e);
-                } finally {
-                    fileLock.unlock();
+    @Nullable private static String legacySuffix(String fileName, UUID playerId) {
+        String suffix = fileName.substring(fileName.indexOf(playerId.toString()) + playerId.toString().length());
+        if (suffix.equals(LEGACY_OVERFLOW_SUFFIX)) return OVERFLOW_SUFFIX;
+        return fileName.contains(" - ") && BACKPACK_SUFFIXES.contains(suffix) ? suffix : null;
+    }
+
+    /**
+     * @return {@code false} when a file could not be moved
+     */
+    private boolean migratePlayer(UUID playerId, List<File> files) {
+        // Oldest first, so the index ends up with the most recent name
+        List<File> sortedFiles = new ArrayList<>(files);
+        sortedFiles.sort(Comparator.comparingLong(File::lastModified));
+
+        ReentrantLock fileLock = lockFor(playerId);
+        try {
+            fileLock.lock();
+            for (File file : sortedFiles) {
+                if (!file.exists()) continue;
+
+                String fileName = file.getName();
+                String suffix = legacySuffix(fileName, playerId);
+                if (suffix == null) continue;
+                if (fileName.contains(" - ")) nameIndex.update(playerId, fileName.substring(0, fileName.indexOf(" - ")));
+
+                File target = playerFile(playerId, suffix);
+                Files.createDirectories(target.getParentFile().toPath());
+                if (!target.exists()) {
+                    Files.move(file.toPath(), target.toPath());
+                    continue;
                 }
+
+                File conflictFolder = new File(plugin.getDataFolder(), "migration-conflicts");
+                Files.createDirectories(conflictFolder.toPath());
+                Files.move(file.toPath(), new File(conflictFolder, fileName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                plugin.getLogger().warning("Player " + playerId + " has more than one " + suffix
+                        + " file, moved " + fileName + " to migration-conflicts/");
             }
+            return true;
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Error moving backpack files of player " + playerId, e);
+            return false;
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    /* LEGACY FORMAT MIGRATION */
+
+    /**
+     * @return every player with a {@code .yml} or {@code .yml.gz} backpack in the sharded folders
+     */
+    @Nonnull Set<UUID> findLegacyFormatPlayers() {
+        Set<UUID> players = new HashSet<>();
+        for (File file : listPlayerFiles()) {
+            String name = file.getName();
+            if (name.contains("-overflow") || !(name.endsWith(".yml.gz") || name.endsWith(".yml"))) continue;
+            UUID playerId = parsePlayerId(name);
+            if (playerId != null) players.add(playerId);
         }
+        return players;
     }
 
-    private boolean isValidGZIPFile(File file) {
-        try (FileInputStream fis = new FileInputStream(file);
-             GZIPInputStream gis = new GZIPInputStream(fis)) {
-            byte[] buffer = new byte[1024];
-            while (gis.read(buffer) != -1) {
-                // Just reading to validate
+    /**
+     * Rewrites the player's legacy backpack as a {@code .vsb} file and moves the originals to {@code quarantine/}.
+     * A player that already has a binary file only has the stale originals moved.
+     *
+     * @throws IOException when the legacy file cannot be read or the binary file cannot be written; the originals
+     *                     are left in place so the conversion is tried again on the next start
+     */
+    void convertLegacyFormat(@Nonnull UUID playerId) throws IOException {
+        ReentrantLock fileLock = lockFor(playerId);
+        try {
+            fileLock.lock();
+            File binaryFile = playerFile(playerId, BackpackCodec.EXTENSION);
+            File legacyFile = playerFile(playerId, ".yml.gz");
+            if (!legacyFile.exists()) legacyFile = playerFile(playerId, ".yml");
+
+            if (!binaryFile.exists() && legacyFile.exists()) {
+                BackpackData data = readLegacyFile(playerId, legacyFile);
+                writeAtomically(binaryFile, BackpackCodec.encode(data.toPageContents()));
             }
-            return true;
-        } catch (Exception e) {
-            return false;
+            quarantine(playerFile(playerId, ".yml.gz"));
+            quarantine(playerFile(playerId, ".yml"));
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    private void quarantine(File file) throws IOException {
+        if (!file.exists()) return;
+
+        Path dataFolder = plugin.getDataFolder().toPath();
+        Path target = dataFolder.resolve("quarantine").resolve(dataFolder.relativize(file.toPath()));
+        Files.createDirectories(target.getParent());
+        Files.move(file.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    void markLegacyFormatsMigrated() {
+        legacyFormatsPending = false;
+    }
+
+    /* HELPER */
+
+    private ReentrantLock lockFor(@Nonnull UUID playerId) {
+        return fileLocks[Math.floorMod(playerId.hashCode(), LOCK_STRIPES)];
+    }
+
+    /**
+     * Player files live in {@code players/<first two uuid characters>/<uuid><suffix>}.
+     */
+    @Nonnull private File playerFile(@Nonnull UUID playerId, String suffix) {
+        String id = playerId.toString();
+        return new File(new File(playersFolder, id.substring(0, 2)), id + suffix);
+    }
+
+    @Nonnull private List<File> listPlayerFiles() {
+        List<File> playerFiles = new ArrayList<>();
+        File[] shards = playersFolder.listFiles(File::isDirectory);
+        if (shards == null) return playerFiles;
+
+        for (File shard : shards) {
+            File[] files = shard.listFiles((dir, name) -> isBackpackFileName(name));
+            if (files != null) playerFiles.addAll(Arrays.asList(files));
+        }
+        return playerFiles;
+    }
+
+    @Nullable private UUID parsePlayerId(String fileName) {
+        Matcher matcher = UUID_PATTERN.matcher(fileName);
+        return matcher.find() ? UUID.fromString(matcher.group()) : null;
+    }
+
+    private boolean isBackpackFileName(String name) {
+        if (name.contains(".tmp.")) return false;
+        return name.endsWith(BackpackCodec.EXTENSION) || name.endsWith(BackpackJournal.EXTENSION)
+                || name.endsWith(OverflowLog.EXTENSION) || name.endsWith(".yml.gz") || name.endsWith(".yml");
+    }
+
+    @Override
+    @Nonnull public List<BackupSource> getBackupSources() {
+        List<File> files = listPlayerFiles();
+        for (List<File> playerFiles : legacyFiles.values()) {
+            for (File file : playerFiles) {
+                if (file.exists()) files.add(file);
+            }
+        }
+
+        Path dataFolder = plugin.getDataFolder().toPath();
+        List<BackupSource> sources = new ArrayList<>(files.size() + 1);
+        for (File file : files) {
+            UUID playerId = parsePlayerId(file.getName());
+            String path = dataFolder.relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+            sources.add(BackupSource.locked(path, file, playerId != null ? lockFor(playerId) : null));
+        }
+
+        File indexFile = new File(plugin.getDataFolder(), PlayerNameIndex.FILE_NAME);
+        if (indexFile.exists()) {
+            sources.add(new BackupSource(PlayerNameIndex.FILE_NAME, indexFile, target -> nameIndex.copyTo(target.toFile())));
         }
+        return sources;
     }
 }
@@ -0,0 +1,183 @@
+package net.duart.virtualstorage.util;
+
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+import org.bukkit.configuration.serialization.ConfigurationSerialization;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.util.io.BukkitObjectInputStream;
+import org.bukkit.util.io.BukkitObjectOutputStream;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Compact binary encoding for {@link ItemStack}s.
+ * <p>
+ * Items are written as the same tree Bukkit hands to YAML ({@link ConfigurationSerializable#serialize()}),
+ * but with one-byte type tags instead of text, so no YAML emitter or parser is involved on either side.
+ */
+public final class ItemCodec {
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_STRING = 1;
+    private static final byte TAG_INT = 2;
+    private static final byte TAG_LONG = 3;
+    private static final byte TAG_DOUBLE = 4;
+    private static final byte TAG_FLOAT = 5;
+    private static final byte TAG_BOOLEAN = 6;
+    private static final byte TAG_SHORT = 7;
+    private static final byte TAG_BYTE = 8;
+    private static final byte TAG_LIST = 9;
+    private static final byte TAG_MAP = 10;
+    private static final byte TAG_SERIALIZABLE = 11;
+    private static final byte TAG_OBJECT = 12;
+
+    private ItemCodec() { }
+
+    @Nonnull public static byte[] encode(@Nonnull ItemStack item) throws IOException {
+        ByteArrayOutputStream byteOutput = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(byteOutput)) {
+            writeValue(out, item);
+        }
+        return byteOutput.toByteArray();
+    }
+
+    @Nonnull public static ItemStack decode(@Nonnull byte[] data) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            Object value = readValue(in);
+            if (!(value instanceof ItemStack item)) {
+                throw new IOException("Encoded value is not an item stack");
+            }
+            return item;
+        }
+    }
+
+    /* WRITE */
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TAG_NULL);
+        } else if (value instanceof String s) {
+            out.writeByte(TAG_STRING);
+            writeString(out, s);
+        } else if (value instanceof Integer i) {
+            out.writeByte(TAG_INT);
+            out.writeInt(i);
+        } else if (value instanceof Long l) {
+            out.writeByte(TAG_LONG);
+            out.writeLong(l);
+        } else if (value instanceof Double d) {
+            out.writeByte(TAG_DOUBLE);
+            out.writeDouble(d);
+        } else if (value instanceof Float f) {
+            out.writeByte(TAG_FLOAT);
+            out.writeFloat(f);
+        } else if (value instanceof Boolean b) {
+            out.writeByte(TAG_BOOLEAN);
+            out.writeBoolean(b);
+        } else if (value instanceof Short s) {
+            out.writeByte(TAG_SHORT);
+            out.writeShort(s);
+        } else if (value instanceof Byte b) {
+            out.writeByte(TAG_BYTE);
+            out.writeByte(b);
+        } else if (value instanceof ConfigurationSerializable serializable) {
+            out.writeByte(TAG_SERIALIZABLE);
+            writeString(out, ConfigurationSerialization.getAlias(serializable.getClass()));
+            writeMap(out, serializable.serialize());
+        } else if (value instanceof Map<?, ?> map) {
+            out.writeByte(TAG_MAP);
+            writeMap(out, map);
+        } else if (value instanceof Collection<?> collection) {
+            out.writeByte(TAG_LIST);
+            out.writeInt(collection.size());
+            for (Object element : collection) {
+                writeValue(out, element);
+            }
+        } else {
+            out.writeByte(TAG_OBJECT);
+            ByteArrayOutputStream byteOutput = new ByteArrayOutputStream();
+            try (BukkitObjectOutputStream oos = new BukkitObjectOutputStream(byteOutput)) {
+                oos.writeObject(value);
+            }
+            byte[] bytes = byteOutput.toByteArray();
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static void writeMap(DataOutputStream out, Map<?, ?> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            writeString(out, String.valueOf(entry.getKey()));
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /* READ */
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        return switch (tag) {
+            case TAG_NULL -> null;
+            case TAG_STRING -> readString(in);
+            case TAG_INT -> in.readInt();
+            case TAG_LONG -> in.readLong();
+            case TAG_DOUBLE -> in.readDouble();
+            case TAG_FLOAT -> in.readFloat();
+            case TAG_BOOLEAN -> in.readBoolean();
+            case TAG_SHORT -> in.readShort();
+            case TAG_BYTE -> in.readByte();
+            case TAG_LIST -> {
+                int size = in.readInt();
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in));
+                }
+                yield list;
+            }
+            case TAG_MAP -> readMap(in, null);
+            case TAG_SERIALIZABLE -> {
+                String alias = readString(in);
+                Map<String, Object> map = readMap(in, alias);
+                yield ConfigurationSerialization.deserializeObject(map);
+            }
+            case TAG_OBJECT -> {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                try (BukkitObjectInputStream ois = new BukkitObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    yield ois.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Unknown serialized class", e);
+                }
+            }
+            default -> throw new IOException("Unknown value tag " + tag);
+        };
+    }
+
+    private static Map<String, Object> readMap(DataInputStream in, String alias) throws IOException {
+        int size = in.readInt();
+        Map<String, Object> map = new LinkedHashMap<>(size + 2);
+        if (alias != null) {
+            map.put(ConfigurationSerialization.SERIALIZED_TYPE_KEY, alias);
+        }
+        for (int i = 0; i < size; i++) {
+            String key = readString(in);
+            map.put(key, readValue(in));
+        }
+        return map;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,129 @@
+package net.duart.virtualstorage.util;
+
+import org.bukkit.plugin.Plugin;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * One-shot background conversion of {@code .yml}/{@code .yml.gz} backpacks to the binary format.
+ * <p>
+ * Runs on a small low-priority fork-join pool, paced to a maximum number of files per second so it does not
+ * compete with the server for disk and CPU. The originals are kept in {@code quarantine/} once converted, and
+ * backpacks that fail keep theirs so the next start tries again.
+ */
+class LegacyFormatMigration {
+    private final Plugin plugin;
+    private final FileHandlers fileHandlers;
+    private final int parallelism;
+    private final long intervalNanos;
+    private final AtomicLong nextStart = new AtomicLong();
+    private ForkJoinPool pool;
+    private volatile boolean stopped;
+
+    private static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+    LegacyFormatMigration(Plugin plugin, FileHandlers fileHandlers) {
+        this.plugin = plugin;
+        this.fileHandlers = fileHandlers;
+
+        int defaultThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+        this.parallelism = Math.max(1, plugin.getConfig().getInt("storage.migration.threads", defaultThreads));
+        int filesPerSecond = plugin.getConfig().getInt("storage.migration.files-per-second", 200);
+        this.intervalNanos = filesPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / filesPerSecond : 0;
+    }
+
+    synchronized void start() {
+        if (stopped || pool != null) return;
+
+        pool = new ForkJoinPool(parallelism, forkJoinPool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName("VirtualStorages-Migration-" + thread.getPoolIndex());
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }, null, false);
+        pool.execute(this::run);
+    }
+
+    synchronized void stop() {
+        stopped = true;
+        if (pool == null) return;
+
+        pool.shutdownNow();
+        try {
+            if (!pool.awaitTermination(10, TimeUnit.SECONDS)) {
+                plugin.getLogger().warning("Timed out waiting for the legacy backpack conversion to stop");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<UUID> players = new ArrayList<>(fileHandlers.findLegacyFormatPlayers());
+        if (players.isEmpty()) {
+            fileHandlers.markLegacyFormatsMigrated();
+            return;
+        }
+
+        plugin.getLogger().info("Converting " + players.size() + " legacy backpacks to the binary format...");
+        long start = System.nanoTime();
+        AtomicInteger done = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicLong lastReport = new AtomicLong(start);
+
+        players.parallelStream().forEach(playerId -> {
+            if (stopped) return;
+            try {
+                throttle();
+                fileHandlers.convertLegacyFormat(playerId);
+            } catch (InterruptedException e) {
+                stopped = true;
+                return;
+            } catch (IOException e) {
+                failed.incrementAndGet();
+                plugin.getLogger().log(Level.SEVERE, "Could not convert the legacy backpack of " + playerId
+                        + ", the original was left in place and the conversion will be retried on the next start", e);
+            }
+
+            int converted = done.incrementAndGet();
+            long now = System.nanoTime();
+            long last = lastReport.get();
+            if (now - last >= PROGRESS_INTERVAL && lastReport.compareAndSet(last, now)) {
+                plugin.getLogger().info("Converting legacy backpacks: " + converted + "/" + players.size()
+                        + " (" + converted * 100 / players.size() + "%)");
+            }
+        });
+
+        if (stopped) {
+            plugin.getLogger().info("Legacy backpack conversion paused at " + done + "/" + players.size()
+                    + ", it will continue on the next start");
+            return;
+        }
+
+        if (fileHandlers.findLegacyFormatPlayers().isEmpty()) fileHandlers.markLegacyFormatsMigrated();
+        plugin.getLogger().info("Legacy backpack conversion finished: " + (done.get() - failed.get()) + " converted, "
+                + failed + " failed in " + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start)
+                + " s. The original files of converted backpacks were moved to quarantine/");
+    }
+
+    /**
+     * Waits for this task's start slot so the whole pool stays under the configured rate.
+     */
+    private void throttle() throws InterruptedException {
+        if (intervalNanos == 0) return;
+
+        long now = System.nanoTime();
+        long slot = nextStart.getAndUpdate(previous -> Math.max(previous, now) + intervalNanos);
+        long wait = Math.max(slot, now) - now;
+        if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+    }
+}
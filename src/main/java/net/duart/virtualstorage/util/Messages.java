@@ -58,9 +58,13 @@ public class Messages {
             case "noCommandPermission" -> "&cYou do not have permissions to use this command.";
             case "noPermissionOther" -> "&cThis player does not have any permissions.";
             case "backpackInUse" -> "&cThat player's backpack is currently in use. Try again in a moment.";
+            case "loadFailed" -> "&cYour backpack could not be loaded. Please tell an administrator.";
             case "itemsRecovered" -> "&aYour previous stored items were recovered to your backpack!";
             case "itemsOverflowed" -> "&eOh no! You lost permission to access some pages in your backpack, so some items were safely stored until you can access them again.";
             case "reloadDone" -> "&aLanguage file reloaded.";
+            case "searchFound" -> "&aFound %query% in %count% slots on pages %pages%.";
+            case "searchSlots" -> "&7Page %page%, row:column %slots%";
+            case "searchNotFound" -> "&eThere is nothing matching %query% in your backpack.";
             default -> "";
         };
     }
@@ -0,0 +1,83 @@
+package net.duart.virtualstorage.util;
+
+import org.bukkit.inventory.ItemStack;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of overflow items.
+ * <p>
+ * Each item is one (length, CRC32, item bytes) record, so adding items never rewrites what is already stored
+ * and a torn tail from a crash is ignored on read.
+ */
+public final class OverflowLog {
+
+    public static final String EXTENSION = ".vso";
+
+    private OverflowLog() { }
+
+    @Nonnull public static byte[] encode(@Nonnull List<ItemStack> items) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(items.size() * 128);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            for (ItemStack item : items) {
+                byte[] itemBytes = ItemCodec.encode(item);
+                CRC32 crc = new CRC32();
+                crc.update(itemBytes);
+
+                out.writeInt(itemBytes.length);
+                out.writeInt((int) crc.getValue());
+                out.write(itemBytes);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Appends the items as one write and forces them to disk.
+     */
+    public static void append(@Nonnull File log, @Nonnull List<ItemStack> items) throws IOException {
+        ByteBuffer records = ByteBuffer.wrap(encode(items));
+        try (FileChannel channel = FileChannel.open(log.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (records.hasRemaining()) {
+                channel.write(records);
+            }
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Decodes every intact record, stopping at the first damaged one.
+     */
+    @Nonnull public static List<ItemStack> decode(@Nonnull byte[] data) throws IOException {
+        List<ItemStack> items = new ArrayList<>();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        while (in.available() >= 8) {
+            int length = in.readInt();
+            int storedCrc = in.readInt();
+            if (length <= 0 || length > in.available()) break;
+
+            byte[] itemBytes = new byte[length];
+            in.readFully(itemBytes);
+
+            CRC32 crc = new CRC32();
+            crc.update(itemBytes);
+            if ((int) crc.getValue() != storedCrc) break;
+
+            items.add(ItemCodec.decode(itemBytes));
+        }
+        return items;
+    }
+
+    @Nonnull public static List<ItemStack> read(@Nonnull File log) throws IOException {
+        return decode(Files.readAllBytes(log.toPath()));
+    }
+}
@@ -0,0 +1,105 @@
+package net.duart.virtualstorage.util;
+
+import org.bukkit.plugin.Plugin;
+
+import javax.annotation.Nonnull;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * Persistent index of the last known name of every player with stored data, so the UUID-keyed files can still be
+ * matched to players by hand.
+ * <p>
+ * Kept in {@code names.idx} as an append-only log of {@code <uuid> <name>} lines where later lines win.
+ * The log is rewritten at startup once it holds mostly superseded lines.
+ */
+public class PlayerNameIndex {
+    private final Plugin plugin;
+    private final File indexFile;
+    private final ConcurrentHashMap<UUID, String> names = new ConcurrentHashMap<>();
+
+    public static final String FILE_NAME = "names.idx";
+
+    public PlayerNameIndex(Plugin plugin) {
+        this.plugin = plugin;
+        this.indexFile = new File(plugin.getDataFolder(), FILE_NAME);
+        load();
+    }
+
+    private void load() {
+        if (!indexFile.exists()) return;
+
+        int lines = 0;
+        try (BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.indexOf(' ');
+                if (separator <= 0 || separator == line.length() - 1) continue;
+                try {
+                    names.put(UUID.fromString(line.substring(0, separator)), line.substring(separator + 1));
+                    lines++;
+                } catch (IllegalArgumentException ignored) {}
+            }
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Error loading player name index", e);
+            return;
+        }
+
+        if (lines > names.size() * 2 + 64) rewrite();
+    }
+
+    /**
+     * Records the player's current name. Does nothing when the name is unchanged.
+     */
+    public void update(@Nonnull UUID playerId, @Nonnull String playerName) {
+        if (playerName.equals(names.get(playerId))) return;
+
+        synchronized (this) {
+            if (playerName.equals(names.get(playerId))) return;
+            names.put(playerId, playerName);
+
+            try (BufferedWriter writer = Files.newBufferedWriter(indexFile.toPath(), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                writer.write(playerId + " " + playerName);
+                writer.newLine();
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Error updating player name index for " + playerId, e);
+            }
+        }
+    }
+
+    /**
+     * Copies the index file to the given location.
+     */
+    public synchronized void copyTo(@Nonnull File target) throws IOException {
+        if (indexFile.exists()) {
+            Files.copy(indexFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private synchronized void rewrite() {
+        File tempFile = new File(indexFile.getParentFile(), FILE_NAME + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8)) {
+                for (Map.Entry<UUID, String> entry : names.entrySet()) {
+                    writer.write(entry.getKey() + " " + entry.getValue());
+                    writer.newLine();
+                }
+            }
+            Files.move(tempFile.toPath(), indexFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Error compacting player name index", e);
+        }
+    }
+}
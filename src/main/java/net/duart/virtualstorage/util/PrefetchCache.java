@@ -0,0 +1,150 @@
+package net.duart.virtualstorage.util;
+
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.plugin.Plugin;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Short-lived cache of backpacks decoded while players log in, so the first open needs no disk access.
+ * <p>
+ * Entries are taken by the first open, and dropped when the player leaves, when the backpack or its overflow
+ * is written, or once the TTL runs out. Hits and misses only count the first open after a login that tried to
+ * prefetch, so later opens and logins with prefetch skipped do not dilute the hit rate.
+ */
+public class PrefetchCache {
+    private final ConcurrentHashMap<UUID, Slot> slots = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<UUID, Long> attempts = new ConcurrentHashMap<>();
+    private final boolean enabled;
+    private final long ttlNanos;
+
+    private final LongAdder prefetched = new LongAdder();
+    private final LongAdder prefetchNanos = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    // Logins that never reached the server leave their attempt behind, it is dropped after this long
+    private static final long ATTEMPT_RETENTION_NANOS = TimeUnit.HOURS.toNanos(1);
+
+    public record Entry(@Nullable BackpackData data, @Nonnull List<ItemStack> overflowItems) { }
+
+    private static final class Slot {
+        private final long expiresAt;
+        private volatile Entry entry;
+
+        private Slot(long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public PrefetchCache(Plugin plugin) {
+        this.enabled = plugin.getConfig().getBoolean("storage.prefetch.enabled", true);
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(Math.max(1, plugin.getConfig().getInt("storage.prefetch.ttl-seconds", 60)));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Loads the entry on the calling thread and parks it. Anything invalidated while loading is discarded.
+     */
+    public void prefetch(@Nonnull UUID playerId, @Nonnull Supplier<Entry> loader) {
+        if (!enabled) return;
+        purgeExpired();
+
+        long start = System.nanoTime();
+        attempts.put(playerId, start);
+        Slot slot = new Slot(start + ttlNanos);
+        slots.put(playerId, slot);
+        try {
+            slot.entry = loader.get();
+        } catch (RuntimeException e) {
+            slots.remove(playerId, slot);
+            throw e;
+        }
+        prefetched.increment();
+        prefetchNanos.add(System.nanoTime() - start);
+    }
+
+    /**
+     * Removes and returns the player's entry, or null when it is missing, still loading or expired. Only the first
+     * call after a prefetch attempt counts towards the statistics.
+     */
+    @Nullable public Entry take(@Nonnull UUID playerId) {
+        if (!enabled) return null;
+
+        boolean counted = attempts.remove(playerId) != null;
+        Slot slot = slots.remove(playerId);
+        if (slot == null || slot.entry == null) {
+            if (counted) misses.increment();
+            return null;
+        }
+        if (System.nanoTime() - slot.expiresAt > 0) {
+            if (counted) {
+                expired.increment();
+                misses.increment();
+            }
+            return null;
+        }
+        if (counted) hits.increment();
+        return slot.entry;
+    }
+
+    /**
+     * Drops the player's entry. The next open still counts as the first one, so a prefetch made stale by a write
+     * is a miss.
+     */
+    public void invalidate(@Nonnull UUID playerId) {
+        slots.remove(playerId);
+    }
+
+    /**
+     * Drops the player's entry and their prefetch attempt, for when they leave.
+     */
+    public void forget(@Nonnull UUID playerId) {
+        slots.remove(playerId);
+        attempts.remove(playerId);
+    }
+
+    private void purgeExpired() {
+        long now = System.nanoTime();
+        slots.values().removeIf(slot -> now - slot.expiresAt > 0);
+        attempts.values().removeIf(start -> now - start > ATTEMPT_RETENTION_NANOS);
+    }
+
+    /* STATS */
+
+    public int size() {
+        return slots.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    public long getPrefetched() {
+        return prefetched.sum();
+    }
+
+    public double getAveragePrefetchMillis() {
+        long count = prefetched.sum();
+        return count == 0 ? 0 : prefetchNanos.sum() / (count * 1_000_000.0);
+    }
+}
@@ -0,0 +1,331 @@
+package net.duart.virtualstorage.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * A file shared by many players, laid out like an Anvil region.
+ * <p>
+ * The file starts with a table of {@value #ENTRY_COUNT} entries of (uuid, type, first sector, length, CRC32),
+ * followed by 4 KiB data sectors. Each record occupies a contiguous run of sectors. Writes always go to free
+ * sectors and the entry is only switched over once the data is on disk, so a crash leaves either version intact.
+ * <p>
+ * When every entry is taken another table is allocated in the data area and chained from the last entry of the
+ * previous one, so a region never fills up.
+ */
+public class RegionFile {
+    private final File file;
+    private final FileChannel channel;
+    private final List<Entry> entries = new ArrayList<>();
+    private final List<Integer> tableSectors = new ArrayList<>();
+    private final Map<Key, Integer> index = new HashMap<>();
+    private final BitSet usedSectors = new BitSet();
+
+    public static final int SECTOR_SIZE = 4096;
+    public static final int ENTRY_COUNT = 4096;
+
+    private static final int ENTRY_SIZE = 32;
+    private static final int HEADER_SECTORS = ENTRY_COUNT * ENTRY_SIZE / SECTOR_SIZE;
+    private static final Key TABLE_LINK = new Key(new UUID(0, 0), (byte) -1);
+
+    /**
+     * Identifies a record: the owning player and what kind of data it holds.
+     */
+    public record Key(@Nonnull UUID playerId, byte type) { }
+
+    private record Entry(Key key, int firstSector, int length, int crc) {
+        int sectorCount() {
+            return (length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+        }
+    }
+
+    public RegionFile(@Nonnull File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        if (channel.size() < (long) HEADER_SECTORS * SECTOR_SIZE) {
+            channel.write(ByteBuffer.allocate(HEADER_SECTORS * SECTOR_SIZE), 0);
+            channel.force(true);
+            addTable(0);
+            return;
+        }
+
+        Integer nextTable = 0;
+        while (nextTable != null) {
+            if (tableSectors.contains(nextTable)) {
+                throw new IOException("Entry tables of region file " + file.getName() + " form a loop");
+            }
+            nextTable = readTable(nextTable);
+        }
+    }
+
+    /**
+     * @return the first sector of the table chained from this one, or {@code null} for the last table
+     */
+    @Nullable private Integer readTable(int firstSector) throws IOException {
+        int base = addTable(firstSector);
+        Integer nextTable = null;
+
+        MappedByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, (long) firstSector * SECTOR_SIZE,
+                (long) HEADER_SECTORS * SECTOR_SIZE);
+        for (int slot = base; slot < base + ENTRY_COUNT; slot++) {
+            long most = table.getLong();
+            long least = table.getLong();
+            int recordSector = table.getInt();
+            int length = table.getInt();
+            int crc = table.getInt();
+            byte type = table.get();
+            table.position(table.position() + 3);
+            if (length <= 0) continue;
+
+            Entry entry = new Entry(new Key(new UUID(most, least), type), recordSector, length, crc);
+            entries.set(slot, entry);
+            usedSectors.set(recordSector, recordSector + entry.sectorCount());
+            if (entry.key().equals(TABLE_LINK)) {
+                nextTable = recordSector;
+            } else {
+                index.put(entry.key(), slot);
+            }
+        }
+        return nextTable;
+    }
+
+    /**
+     * @return the record's bytes, or {@code null} when it does not exist
+     */
+    @Nullable public synchronized byte[] read(@Nonnull Key key) throws IOException {
+        Integer slot = index.get(key);
+        if (slot == null) return null;
+
+        Entry entry = entries.get(slot);
+        ByteBuffer buffer = ByteBuffer.allocate(entry.length());
+        readFully(buffer, (long) entry.firstSector() * SECTOR_SIZE);
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array());
+        if ((int) crc.getValue() != entry.crc()) {
+            throw new IOException("Checksum mismatch for " + key + " in " + file.getName());
+        }
+        return buffer.array();
+    }
+
+    public synchronized boolean contains(@Nonnull Key key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * Writes several records with a single sync for the data and one for the table. When the write fails, the
+     * sectors of records that did not reach the table are free again.
+     */
+    public synchronized void writeAll(@Nonnull Map<Key, byte[]> records) throws IOException {
+        List<Entry> written = new ArrayList<>(records.size());
+        int switched = 0;
+        try {
+            for (Map.Entry<Key, byte[]> record : records.entrySet()) {
+                byte[] data = record.getValue();
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                Entry entry = new Entry(record.getKey(), allocate((data.length + SECTOR_SIZE - 1) / SECTOR_SIZE),
+                        data.length, (int) crc.getValue());
+                written.add(entry);
+
+                writeFully(ByteBuffer.wrap(data), (long) entry.firstSector() * SECTOR_SIZE);
+            }
+            channel.force(false);
+
+            for (Entry entry : written) {
+                Integer slot = index.get(entry.key());
+                if (slot == null) slot = freeSlot();
+                Entry previous = entries.get(slot);
+                putEntry(slot, entry);
+                switched++;
+                if (previous != null) freeSectors(previous);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Entry entry : written.subList(switched, written.size())) {
+                freeSectors(entry);
+            }
+            throw e;
+        }
+        channel.force(false);
+    }
+
+    public synchronized void delete(@Nonnull Key key) throws IOException {
+        Integer slot = index.remove(key);
+        if (slot == null) return;
+
+        Entry entry = entries.get(slot);
+        entries.set(slot, null);
+        writeFully(ByteBuffer.allocate(ENTRY_SIZE), entryPosition(slot));
+        channel.force(false);
+        freeSectors(entry);
+    }
+
+    @Nonnull public synchronized List<Key> keys() {
+        return new ArrayList<>(index.keySet());
+    }
+
+    /**
+     * @return the share of the data area that is not used by any record
+     */
+    public synchronized double fragmentation() throws IOException {
+        long dataSectors = channel.size() / SECTOR_SIZE - HEADER_SECTORS;
+        if (dataSectors <= 0) return 0;
+        return 1.0 - (double) (usedSectors.cardinality() - HEADER_SECTORS) / dataSectors;
+    }
+
+    /**
+     * Moves every record to the lowest free run that fits it and truncates the unused tail.
+     *
+     * @return the number of bytes reclaimed
+     */
+    public synchronized long defragment() throws IOException {
+        long sizeBefore = channel.size();
+
+        Integer[] slots = index.values().toArray(new Integer[0]);
+        Arrays.sort(slots, Comparator.comparingInt(slot -> entries.get(slot).firstSector()));
+        for (int slot : slots) {
+            Entry entry = entries.get(slot);
+            int sectors = entry.sectorCount();
+            // The record keeps its sectors while allocating, so the new run never overlaps the old one
+            int target = allocate(sectors);
+            if (target > entry.firstSector()) {
+                usedSectors.clear(target, target + sectors);
+                continue;
+            }
+
+            ByteBuffer data = ByteBuffer.allocate(entry.length());
+            readFully(data, (long) entry.firstSector() * SECTOR_SIZE);
+            data.flip();
+            writeFully(data, (long) target * SECTOR_SIZE);
+            channel.force(false);
+            putEntry(slot, new Entry(entry.key(), target, entry.length(), entry.crc()));
+            channel.force(false);
+            usedSectors.clear(entry.firstSector(), entry.firstSector() + sectors);
+        }
+
+        long usedLength = (long) Math.max(usedSectors.length(), HEADER_SECTORS) * SECTOR_SIZE;
+        if (usedLength < sizeBefore) channel.truncate(usedLength);
+        return sizeBefore - channel.size();
+    }
+
+    public synchronized void copyTo(@Nonnull File target) throws IOException {
+        channel.force(true);
+        Files.copy(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    /* HELPER */
+
+    private int allocate(int sectors) {
+        int start = usedSectors.nextClearBit(HEADER_SECTORS);
+        while (true) {
+            int nextUsed = usedSectors.nextSetBit(start);
+            if (nextUsed == -1 || nextUsed - start >= sectors) break;
+            start = usedSectors.nextClearBit(nextUsed);
+        }
+        usedSectors.set(start, start + sectors);
+        return start;
+    }
+
+    private void freeSectors(Entry entry) {
+        usedSectors.clear(entry.firstSector(), entry.firstSector() + entry.sectorCount());
+    }
+
+    private int freeSlot() throws IOException {
+        int slot = entries.indexOf(null);
+        return slot != -1 ? slot : chainTable();
+    }
+
+    /**
+     * Registers a table of empty slots starting at the given sector.
+     *
+     * @return the first slot of the table
+     */
+    private int addTable(int firstSector) {
+        int base = entries.size();
+        tableSectors.add(firstSector);
+        usedSectors.set(firstSector, firstSector + HEADER_SECTORS);
+        entries.addAll(Collections.nCopies(ENTRY_COUNT, null));
+        return base;
+    }
+
+    /**
+     * Writes a new table holding the record from the last slot of the last table, then turns that slot into the
+     * link to the new table. Until the link is on disk the record stays reachable from its old slot.
+     *
+     * @return a free slot in the new table
+     */
+    private int chainTable() throws IOException {
+        int linkSlot = entries.size() - 1;
+        Entry moved = entries.get(linkSlot);
+        int firstSector = allocate(HEADER_SECTORS);
+        Entry link = new Entry(TABLE_LINK, firstSector, HEADER_SECTORS * SECTOR_SIZE, 0);
+        try {
+            ByteBuffer table = ByteBuffer.allocate(HEADER_SECTORS * SECTOR_SIZE);
+            table.put(encodeEntry(moved)).rewind();
+            writeFully(table, (long) firstSector * SECTOR_SIZE);
+            channel.force(false);
+            writeFully(encodeEntry(link), entryPosition(linkSlot));
+        } catch (IOException e) {
+            freeSectors(link);
+            throw e;
+        }
+
+        int base = addTable(firstSector);
+        entries.set(linkSlot, link);
+        entries.set(base, moved);
+        index.put(moved.key(), base);
+        return base + 1;
+    }
+
+    private void putEntry(int slot, Entry entry) throws IOException {
+        writeFully(encodeEntry(entry), entryPosition(slot));
+
+        entries.set(slot, entry);
+        index.put(entry.key(), slot);
+    }
+
+    private static ByteBuffer encodeEntry(Entry entry) {
+        ByteBuffer buffer = ByteBuffer.allocate(ENTRY_SIZE);
+        buffer.putLong(entry.key().playerId().getMostSignificantBits());
+        buffer.putLong(entry.key().playerId().getLeastSignificantBits());
+        buffer.putInt(entry.firstSector());
+        buffer.putInt(entry.length());
+        buffer.putInt(entry.crc());
+        buffer.put(entry.key().type());
+        return buffer.rewind();
+    }
+
+    private long entryPosition(int slot) {
+        return (long) tableSectors.get(slot / ENTRY_COUNT) * SECTOR_SIZE + (long) (slot % ENTRY_COUNT) * ENTRY_SIZE;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new IOException("Unexpected end of region file " + file.getName());
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+}
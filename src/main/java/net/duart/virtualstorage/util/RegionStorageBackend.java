@@ -0,0 +1,333 @@
+package net.duart.virtualstorage.util;
+
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.plugin.Plugin;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiPredicate;
+import java.util.logging.Level;
+
+/**
+ * Packs every backpack into {@value #REGION_COUNT} shared region files, bucketed by UUID hash.
+ * <p>
+ * A load is a single positioned read from an already open file, and there is no file per player.
+ * Backpacks that are not in a region yet are imported from the file store the first time they are loaded.
+ * Regions that become mostly free space are defragmented in the background.
+ */
+public class RegionStorageBackend implements StorageBackend {
+    private final Plugin plugin;
+    private final StorageBackend fallback;
+    private final File regionFolder;
+    private final ConcurrentHashMap<Integer, RegionFile> regions = new ConcurrentHashMap<>();
+    private final Set<Integer> queuedDefragmentations = ConcurrentHashMap.newKeySet();
+    private final ExecutorService maintenance;
+
+    public static final int REGION_COUNT = 256;
+
+    private static final byte TYPE_BACKPACK = 0;
+    private static final byte TYPE_OVERFLOW = 1;
+    private static final double DEFRAGMENT_THRESHOLD = 0.5;
+    private static final long DEFRAGMENT_MIN_BYTES = 1024 * 1024;
+
+    public RegionStorageBackend(Plugin plugin, StorageBackend fallback) throws IOException {
+        this.plugin = plugin;
+        this.fallback = fallback;
+        this.regionFolder = new File(plugin.getDataFolder(), "regions");
+        if (!regionFolder.exists() && !regionFolder.mkdirs()) {
+            throw new IOException("Could not create " + regionFolder);
+        }
+
+        maintenance = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "VirtualStorages-Defragmenter");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /* BACKPACKS */
+
+    @Override
+    @Nullable public BackpackData load(@Nonnull UUID playerId, @Nullable String playerName) {
+        try {
+            byte[] data = region(playerId).read(new RegionFile.Key(playerId, TYPE_BACKPACK));
+            if (data != null) return BackpackCodec.decode(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error loading backpack from region file for player " + playerId, e);
+        }
+
+        BackpackData imported = fallback.load(playerId, playerName);
+        if (imported != null) {
+            try {
+                byte[] data = BackpackCodec.encode(imported.toPageContents());
+                region(playerId).writeAll(Map.of(new RegionFile.Key(playerId, TYPE_BACKPACK), data));
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.SEVERE, "Error importing backpack into region file for player " + playerId, e);
+            }
+        }
+        return imported;
+    }
+
+    /**
+     * Samples the regions first, then the backpacks that were not imported from the file store yet.
+     */
+    @Override
+    public void sampleBackpacks(@Nonnull BiPredicate<UUID, BackpackData> visitor) {
+        List<UUID> players = new ArrayList<>();
+        for (int regionIndex : existingRegions()) {
+            try {
+                for (RegionFile.Key key : region(regionIndex).keys()) {
+                    if (key.type() == TYPE_BACKPACK) players.add(key.playerId());
+                }
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.SEVERE, "Error reading region " + regionIndex, e);
+            }
+        }
+        Collections.shuffle(players);
+
+        for (UUID playerId : players) {
+            BackpackData data;
+            try {
+                byte[] stored = region(playerId).read(new RegionFile.Key(playerId, TYPE_BACKPACK));
+                if (stored == null) continue;
+                data = BackpackCodec.decode(stored);
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Skipping unreadable backpack of player " + playerId, e);
+                continue;
+            }
+            if (!visitor.test(playerId, data)) return;
+        }
+
+        Set<UUID> sampled = new HashSet<>(players);
+        fallback.sampleBackpacks((playerId, data) -> sampled.contains(playerId) || visitor.test(playerId, data));
+    }
+
+    @Override
+    public boolean save(@Nonnull BackpackSnapshot snapshot) {
+        return saveAll(List.of(snapshot)).isEmpty();
+    }
+
+    /**
+     * Groups the batch by region so every region is synced once per batch.
+     */
+    @Override
+    @Nonnull public Set<UUID> saveAll(@Nonnull Collection<BackpackSnapshot> snapshots) {
+        Set<UUID> failed = new HashSet<>();
+        Map<Integer, Map<RegionFile.Key, byte[]>> recordsByRegion = new HashMap<>();
+        for (BackpackSnapshot snapshot : snapshots) {
+            try {
+                recordsByRegion.computeIfAbsent(regionIndex(snapshot.playerId()), k -> new HashMap<>())
+                        .put(new RegionFile.Key(snapshot.playerId(), TYPE_BACKPACK), BackpackCodec.encode(snapshot.pages()));
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.SEVERE, "Error encoding backpack data for player " + snapshot.playerId(), e);
+                failed.add(snapshot.playerId());
+            }
+        }
+
+        recordsByRegion.forEach((regionIndex, records) -> {
+            try {
+                RegionFile region = region(regionIndex);
+                region.writeAll(records);
+                scheduleDefragmentation(regionIndex, region);
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.SEVERE, "Error saving " + records.size() + " backpacks to region " + regionIndex, e);
+                for (RegionFile.Key key : records.keySet()) {
+                    failed.add(key.playerId());
+                }
+            }
+        });
+        return failed;
+    }
+
+    /* OVERFLOW */
+
+    @Override
+    @Nonnull public List<ItemStack> peekOverflowItems(@Nonnull UUID playerId) {
+        List<ItemStack> overflowItems = new ArrayList<>(fallback.peekOverflowItems(playerId));
+
+        try {
+            byte[] data = region(playerId).read(new RegionFile.Key(playerId, TYPE_OVERFLOW));
+            if (data != null) overflowItems.addAll(OverflowLog.decode(data));
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Error loading overflow items for " + playerId, e);
+        }
+        return overflowItems;
+    }
+
+    /**
+     * Region records are rewritten as a whole, so an append copies the stored records and adds the new ones.
+     */
+    @Override
+    public void appendOverflowItems(@Nonnull UUID playerId, @Nonnull List<ItemStack> overflowItems) {
+        if (overflowItems.isEmpty()) return;
+        RegionFile.Key key = new RegionFile.Key(playerId, TYPE_OVERFLOW);
+
+        try {
+            RegionFile region = region(playerId);
+            synchronized (region) {
+                byte[] stored = region.read(key);
+                byte[] added = OverflowLog.encode(overflowItems);
+                if (stored == null) {
+                    region.writeAll(Map.of(key, added));
+                } else {
+                    byte[] combined = Arrays.copyOf(stored, stored.length + added.length);
+                    System.arraycopy(added, 0, combined, stored.length, added.length);
+                    region.writeAll(Map.of(key, combined));
+                }
+            }
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Error appending overflow items for " + playerId, e);
+        }
+    }
+
+    /**
+     * The items replace the file store's overflow as well, since {@link #peekOverflowItems} returns both.
+     */
+    @Override
+    public void saveOverflowItems(@Nonnull UUID playerId, @Nonnull List<ItemStack> overflowItems) {
+        if (overflowItems.isEmpty()) return;
+
+        try {
+            region(playerId).writeAll(Map.of(new RegionFile.Key(playerId, TYPE_OVERFLOW), OverflowLog.encode(overflowItems)));
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Error saving overflow items for " + playerId, e);
+            return;
+        }
+        fallback.deleteOverflowItems(playerId);
+    }
+
+    @Override
+    public void deleteOverflowItems(@Nonnull UUID playerId) {
+        fallback.deleteOverflowItems(playerId);
+        try {
+            region(playerId).delete(new RegionFile.Key(playerId, TYPE_OVERFLOW));
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Error deleting overflow items for " + playerId, e);
+        }
+    }
+
+    /* PLAYERS */
+
+    @Override
+    @Nonnull public Collection<UUID> listPlayers() {
+        Set<UUID> players = new HashSet<>(fallback.listPlayers());
+        for (int regionIndex : existingRegions()) {
+            try {
+                for (RegionFile.Key key : region(regionIndex).keys()) {
+                    players.add(key.playerId());
+                }
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.SEVERE, "Error reading region " + regionIndex, e);
+            }
+        }
+        return players;
+    }
+
+    @Override
+    public void delete(@Nonnull UUID playerId) {
+        try {
+            RegionFile region = region(playerId);
+            region.delete(new RegionFile.Key(playerId, TYPE_BACKPACK));
+            region.delete(new RegionFile.Key(playerId, TYPE_OVERFLOW));
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Error deleting backpack of player " + playerId, e);
+        }
+        fallback.delete(playerId);
+    }
+
+    /* MAINTENANCE */
+
+    @Override
+    @Nonnull public List<BackupSource> getBackupSources() {
+        List<BackupSource> sources = new ArrayList<>();
+        for (int regionIndex : existingRegions()) {
+            String fileName = regionFileName(regionIndex);
+            sources.add(new BackupSource("regions/" + fileName, new File(regionFolder, fileName),
+                    target -> region(regionIndex).copyTo(target.toFile())));
+        }
+        sources.addAll(fallback.getBackupSources());
+        return sources;
+    }
+
+    private void scheduleDefragmentation(int regionIndex, RegionFile region) throws IOException {
+        File file = new File(regionFolder, regionFileName(regionIndex));
+        if (file.length() < DEFRAGMENT_MIN_BYTES || region.fragmentation() < DEFRAGMENT_THRESHOLD) return;
+        if (!queuedDefragmentations.add(regionIndex)) return;
+
+        try {
+            maintenance.execute(() -> {
+                queuedDefragmentations.remove(regionIndex);
+                try {
+                    region.defragment();
+                } catch (IOException e) {
+                    plugin.getLogger().log(Level.SEVERE, "Error defragmenting region " + regionIndex, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queuedDefragmentations.remove(regionIndex);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        maintenance.shutdown();
+        try {
+            if (!maintenance.awaitTermination(30, TimeUnit.SECONDS)) {
+                plugin.getLogger().warning("Timed out waiting for region defragmentation");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (RegionFile region : regions.values()) {
+            try {
+                region.close();
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Error closing region file", e);
+            }
+        }
+        fallback.shutdown();
+    }
+
+    /* HELPER */
+
+    private static int regionIndex(UUID playerId) {
+        return Math.floorMod(playerId.hashCode(), REGION_COUNT);
+    }
+
+    private static String regionFileName(int regionIndex) {
+        return "r." + regionIndex + ".vsr";
+    }
+
+    private RegionFile region(UUID playerId) throws IOException {
+        return region(regionIndex(playerId));
+    }
+
+    private RegionFile region(int regionIndex) throws IOException {
+        try {
+            return regions.computeIfAbsent(regionIndex, index -> {
+                try {
+                    return new RegionFile(new File(regionFolder, regionFileName(index)));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Nonnull private List<Integer> existingRegions() {
+        List<Integer> existing = new ArrayList<>();
+        for (int regionIndex = 0; regionIndex < REGION_COUNT; regionIndex++) {
+            if (regions.containsKey(regionIndex) || new File(regionFolder, regionFileName(regionIndex)).exists()) {
+                existing.add(regionIndex);
+            }
+        }
+        return existing;
+    }
+}
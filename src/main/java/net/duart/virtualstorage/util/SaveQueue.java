@@ -0,0 +1,281 @@
+package net.duart.virtualstorage.util;
+
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.plugin.Plugin;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+/**
+ * Write-behind queue for backpack saves.
+ * <p>
+ * Snapshots are keyed by player, so repeated saves for the same backpack collapse into the latest one.
+ * A snapshot stays visible through {@link #getPending(UUID)} until it is on disk, which lets loads
+ * skip the file while a newer copy is still waiting to be written.
+ * <p>
+ * A snapshot that fails to write stays queued and is retried after a delay that doubles with every failure,
+ * from {@value #RETRY_MIN_MILLIS} ms up to {@value #RETRY_MAX_MILLIS} ms.
+ * <p>
+ * Overflow writes run on the same writer thread, chained per player so a read can wait for that player's
+ * writes alone.
+ */
+public class SaveQueue {
+    private final Plugin plugin;
+    private final StorageBackend storage;
+    private final ConcurrentHashMap<UUID, BackpackSnapshot> pending = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<UUID, CompletableFuture<Void>> overflowWrites = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<UUID, Retry> retries = new ConcurrentHashMap<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final AtomicLong retryScheduledAt = new AtomicLong(NO_RETRY);
+    private final ExecutorService writer;
+    private final Executor overflowWriter;
+    private final long groupCommitWindowNanos;
+
+    private static final long RETRY_MIN_MILLIS = 1000;
+    private static final long RETRY_MAX_MILLIS = 60_000;
+    private static final long NO_RETRY = Long.MIN_VALUE;
+    private static final long FLUSH_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long OVERFLOW_WAIT_SECONDS = 10;
+
+    private record Retry(long delayMillis, long notBefore) { }
+
+    public SaveQueue(Plugin plugin, StorageBackend storage) {
+        this.plugin = plugin;
+        this.storage = storage;
+        this.writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "VirtualStorages-Writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.overflowWriter = task -> {
+            try {
+                writer.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+        };
+        this.groupCommitWindowNanos = plugin.getConfig().getBoolean("storage.group-commit.enabled", true)
+                ? TimeUnit.MILLISECONDS.toNanos(plugin.getConfig().getLong("storage.group-commit.window-millis", 5)) : 0;
+    }
+
+    public void enqueue(@Nonnull BackpackSnapshot snapshot) {
+        boolean[] isNew = new boolean[1];
+        pending.compute(snapshot.playerId(), (playerId, previous) -> {
+            if (previous == null) {
+                isNew[0] = true;
+                return snapshot;
+            }
+            return snapshot.mergeDirtyPages(previous);
+        });
+
+        if (isNew[0]) {
+            scheduleDrain();
+        }
+    }
+
+    @Nullable public BackpackSnapshot getPending(@Nonnull UUID playerId) {
+        return pending.get(playerId);
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /* OVERFLOW */
+
+    public void appendOverflow(@Nonnull UUID playerId, @Nonnull List<ItemStack> items) {
+        if (items.isEmpty()) return;
+        submitOverflow(playerId, () -> storage.appendOverflowItems(playerId, items));
+    }
+
+    /**
+     * Replaces the stored overflow items, deleting them when the list is empty.
+     */
+    public void replaceOverflow(@Nonnull UUID playerId, @Nonnull List<ItemStack> items) {
+        submitOverflow(playerId, () -> {
+            if (items.isEmpty()) {
+                storage.deleteOverflowItems(playerId);
+            } else {
+                storage.saveOverflowItems(playerId, items);
+            }
+        });
+    }
+
+    /**
+     * Removes the first {@code consumed} stored items, which were read with {@link #peekOverflow(UUID)} and moved
+     * into the backpack, and puts {@code leftovers} in their place. Items appended since the read are kept.
+     */
+    public void consumeOverflow(@Nonnull UUID playerId, int consumed, @Nonnull List<ItemStack> leftovers) {
+        submitOverflow(playerId, () -> {
+            List<ItemStack> stored = storage.peekOverflowItems(playerId);
+            List<ItemStack> remaining = new ArrayList<>(leftovers);
+            if (stored.size() > consumed) remaining.addAll(stored.subList(consumed, stored.size()));
+
+            if (remaining.isEmpty()) {
+                storage.deleteOverflowItems(playerId);
+            } else {
+                storage.saveOverflowItems(playerId, remaining);
+            }
+        });
+    }
+
+    /**
+     * Reads the stored overflow items without removing them, waiting for this player's queued overflow writes first.
+     * Must not be called from the server thread.
+     */
+    @Nonnull public List<ItemStack> peekOverflow(@Nonnull UUID playerId) {
+        CompletableFuture<Void> writes = overflowWrites.get(playerId);
+        if (writes != null) {
+            try {
+                writes.get(OVERFLOW_WAIT_SECONDS, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                plugin.getLogger().warning("Timed out waiting for the overflow writes of " + playerId);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ignored) {}
+        }
+        return storage.peekOverflowItems(playerId);
+    }
+
+    /**
+     * Chains the write after the player's earlier overflow writes.
+     */
+    private void submitOverflow(UUID playerId, Runnable write) {
+        CompletableFuture<Void> writes = overflowWrites.compute(playerId, (id, previous) ->
+                (previous != null ? previous : CompletableFuture.<Void>completedFuture(null)).thenRunAsync(() -> {
+                    try {
+                        write.run();
+                    } catch (Exception e) {
+                        plugin.getLogger().log(Level.SEVERE, "Error writing overflow items for " + playerId, e);
+                    }
+                }, overflowWriter));
+        writes.whenComplete((result, error) -> overflowWrites.remove(playerId, writes));
+    }
+
+    /**
+     * Blocks until every snapshot enqueued before this call has been written, or the timeout expires. Snapshots
+     * waiting to be retried keep it waiting.
+     */
+    public boolean flush(long timeout, @Nonnull TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        try {
+            while (true) {
+                CompletableFuture<Void> barrier = new CompletableFuture<>();
+                writer.execute(() -> barrier.complete(null));
+                barrier.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (pending.isEmpty()) return true;
+
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return false;
+                LockSupport.parkNanos(Math.min(remaining, FLUSH_POLL_NANOS));
+            }
+        } catch (RejectedExecutionException | ExecutionException | TimeoutException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Retries failed snapshots right away, then waits for the queue to empty.
+     */
+    public void shutdown(long timeout, @Nonnull TimeUnit unit) {
+        retries.clear();
+        scheduleDrain();
+        if (!flush(timeout, unit)) {
+            plugin.getLogger().warning("Timed out waiting for " + pending.size() + " pending backpack saves");
+        }
+        writer.shutdown();
+    }
+
+    private void scheduleDrain() {
+        if (!drainScheduled.compareAndSet(false, true)) return;
+
+        try {
+            writer.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            drain();
+        }
+    }
+
+    /**
+     * Runs a drain once the earliest retry is due, unless one is already planned for that time or earlier.
+     */
+    private void scheduleRetry(long notBefore) {
+        long planned = retryScheduledAt.getAndAccumulate(notBefore,
+                (current, candidate) -> current == NO_RETRY || candidate - current < 0 ? candidate : current);
+        if (planned != NO_RETRY && planned - notBefore <= 0) return;
+
+        long delay = Math.max(0, notBefore - System.nanoTime());
+        CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS).execute(() -> {
+            retryScheduledAt.compareAndSet(notBefore, NO_RETRY);
+            if (!writer.isShutdown()) scheduleDrain();
+        });
+    }
+
+    /**
+     * Writes everything that is pending and not waiting for a retry as one batch. Snapshots replaced while
+     * the batch was being written stay queued and trigger another drain, failed ones stay queued until their
+     * retry is due. With group commit the batch first waits a few milliseconds so a burst of saves is written
+     * together.
+     */
+    private void drain() {
+        if (groupCommitWindowNanos > 0) LockSupport.parkNanos(groupCommitWindowNanos);
+        drainScheduled.set(false);
+
+        long now = System.nanoTime();
+        List<BackpackSnapshot> batch = new ArrayList<>();
+        for (BackpackSnapshot snapshot : pending.values()) {
+            Retry retry = retries.get(snapshot.playerId());
+            if (retry == null || now - retry.notBefore() >= 0) batch.add(snapshot);
+        }
+
+        if (!batch.isEmpty()) {
+            Set<UUID> failed;
+            try {
+                failed = storage.saveAll(batch);
+            } catch (Exception e) {
+                plugin.getLogger().log(Level.SEVERE, "Error writing " + batch.size() + " backpacks", e);
+                failed = Set.copyOf(batch.stream().map(BackpackSnapshot::playerId).toList());
+            }
+
+            for (BackpackSnapshot snapshot : batch) {
+                UUID playerId = snapshot.playerId();
+                if (failed.contains(playerId)) {
+                    Retry previous = retries.get(playerId);
+                    long delay = previous == null ? RETRY_MIN_MILLIS : Math.min(previous.delayMillis() * 2, RETRY_MAX_MILLIS);
+                    retries.put(playerId, new Retry(delay, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay)));
+                } else {
+                    retries.remove(playerId);
+                    pending.remove(playerId, snapshot);
+                }
+            }
+            if (!failed.isEmpty()) {
+                plugin.getLogger().warning(failed.size() + " backpack saves failed and stay queued for a retry");
+            }
+        }
+
+        long nextRetry = NO_RETRY;
+        boolean ready = false;
+        for (UUID playerId : pending.keySet()) {
+            Retry retry = retries.get(playerId);
+            if (retry == null) {
+                ready = true;
+            } else if (nextRetry == NO_RETRY || retry.notBefore() - nextRetry < 0) {
+                nextRetry = retry.notBefore();
+            }
+        }
+        if (ready) scheduleDrain();
+        if (nextRetry != NO_RETRY) scheduleRetry(nextRetry);
+    }
+}
@@ -0,0 +1,411 @@
+package net.duart.virtualstorage.util;
+
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.plugin.Plugin;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.*;
+import java.util.function.BiPredicate;
+import java.util.logging.Level;
+
+/**
+ * Embedded SQLite store keeping one row per backpack page, keyed by UUID and page index.
+ * <p>
+ * Only dirty pages are written, and a batch of saves shares one transaction. Backpacks that are not in
+ * the database yet are imported from the file store the first time they are loaded.
+ */
+public class SqliteStorageBackend implements StorageBackend {
+    private final Plugin plugin;
+    private final StorageBackend fallback;
+    private final File databaseFile;
+    private final Connection writeConnection;
+    private final Connection readConnection;
+
+    public SqliteStorageBackend(Plugin plugin, StorageBackend fallback) throws SQLException {
+        this.plugin = plugin;
+        this.fallback = fallback;
+        this.databaseFile = new File(plugin.getDataFolder(), "backpacks.db");
+
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException e) {
+            throw new SQLException("SQLite JDBC driver is not available", e);
+        }
+
+        writeConnection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile.getAbsolutePath());
+        try {
+            try (Statement statement = writeConnection.createStatement()) {
+                statement.execute("PRAGMA journal_mode=WAL");
+                statement.execute("PRAGMA synchronous=NORMAL");
+                statement.execute("CREATE TABLE IF NOT EXISTS backpacks ("
+                        + "uuid TEXT PRIMARY KEY, name TEXT, page_count INTEGER NOT NULL)");
+                statement.execute("CREATE TABLE IF NOT EXISTS pages ("
+                        + "uuid TEXT NOT NULL, page INTEGER NOT NULL, data BLOB NOT NULL, "
+                        + "PRIMARY KEY (uuid, page)) WITHOUT ROWID");
+                statement.execute("CREATE TABLE IF NOT EXISTS overflow ("
+                        + "id INTEGER PRIMARY KEY AUTOINCREMENT, uuid TEXT NOT NULL, data BLOB NOT NULL)");
+                statement.execute("CREATE INDEX IF NOT EXISTS overflow_uuid ON overflow (uuid)");
+            }
+            writeConnection.setAutoCommit(false);
+
+            readConnection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile.getAbsolutePath());
+        } catch (SQLException | RuntimeException e) {
+            // The plugin carries on with the file store, so nothing else would close it
+            try {
+                writeConnection.close();
+            } catch (SQLException closeError) {
+                e.addSuppressed(closeError);
+            }
+            throw e;
+        }
+    }
+
+    /* BACKPACKS */
+
+    @Override
+    @Nullable public BackpackData load(@Nonnull UUID playerId, @Nullable String playerName) {
+        try {
+            BackpackData data = loadFromDatabase(playerId);
+            if (data != null) return data;
+        } catch (SQLException | IOException e) {
+            throw new UncheckedIOException("Error loading backpack from database for player " + playerId,
+                    e instanceof IOException ioException ? ioException : new IOException(e));
+        }
+
+        BackpackData imported = fallback.load(playerId, playerName);
+        if (imported != null) {
+            importBackpack(playerId, playerName, imported);
+        }
+        return imported;
+    }
+
+    @Nullable private BackpackData loadFromDatabase(UUID playerId) throws SQLException, IOException {
+        synchronized (readConnection) {
+            int pageCount;
+            try (PreparedStatement statement = readConnection.prepareStatement(
+                    "SELECT page_count FROM backpacks WHERE uuid = ?")) {
+                statement.setString(1, playerId.toString());
+                try (ResultSet result = statement.executeQuery()) {
+                    if (!result.next()) return null;
+                    pageCount = result.getInt(1);
+                }
+            }
+
+            Map<Integer, Map<Integer, ItemStack>> pages = new HashMap<>();
+            try (PreparedStatement statement = readConnection.prepareStatement(
+                    "SELECT page, data FROM pages WHERE uuid = ? AND page < ?")) {
+                statement.setString(1, playerId.toString());
+                statement.setInt(2, pageCount);
+                try (ResultSet result = statement.executeQuery()) {
+                    while (result.next()) {
+                        BackpackData page = BackpackCodec.decode(result.getBytes(2));
+                        Map<Integer, ItemStack> pageItems = page.pages().get(0);
+                        if (pageItems != null) pages.put(result.getInt(1), pageItems);
+                    }
+                }
+            }
+            return new BackpackData(pages, pageCount);
+        }
+    }
+
+    /**
+     * Samples the database first, then the backpacks that were not imported from the file store yet.
+     */
+    @Override
+    public void sampleBackpacks(@Nonnull BiPredicate<UUID, BackpackData> visitor) {
+        List<UUID> players = new ArrayList<>();
+        synchronized (readConnection) {
+            try (Statement statement = readConnection.createStatement();
+                 ResultSet result = statement.executeQuery("SELECT uuid FROM backpacks ORDER BY RANDOM()")) {
+                while (result.next()) {
+                    players.add(UUID.fromString(result.getString(1)));
+                }
+            } catch (SQLException e) {
+                plugin.getLogger().log(Level.SEVERE, "Error listing backpacks in database", e);
+            }
+        }
+
+        for (UUID playerId : players) {
+            BackpackData data;
+            try {
+                data = loadFromDatabase(playerId);
+            } catch (SQLException | IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Skipping unreadable backpack of player " + playerId, e);
+                continue;
+            }
+            if (data != null && !visitor.test(playerId, data)) return;
+        }
+
+        Set<UUID> sampled = new HashSet<>(players);
+        fallback.sampleBackpacks((playerId, data) -> sampled.contains(playerId) || visitor.test(playerId, data));
+    }
+
+    private void importBackpack(UUID playerId, @Nullable String playerName, BackpackData data) {
+        List<ItemStack[]> pages = data.toPageContents();
+
+        BitSet allPages = new BitSet();
+        allPages.set(0, pages.size());
+        save(new BackpackSnapshot(playerId, playerName, pages, allPages));
+    }
+
+    @Override
+    public boolean save(@Nonnull BackpackSnapshot snapshot) {
+        return saveAll(List.of(snapshot)).isEmpty();
+    }
+
+    /**
+     * Writes the batch in one transaction. A backpack that cannot be encoded is left out, any other error fails
+     * the whole batch.
+     */
+    @Override
+    @Nonnull public Set<UUID> saveAll(@Nonnull Collection<BackpackSnapshot> snapshots) {
+        Set<UUID> failed = new HashSet<>();
+        synchronized (writeConnection) {
+            try (PreparedStatement upsertBackpack = writeConnection.prepareStatement(
+                    "INSERT INTO backpacks (uuid, name, page_count) VALUES (?, ?, ?) "
+                            + "ON CONFLICT (uuid) DO UPDATE SET name = COALESCE(excluded.name, name), page_count = excluded.page_count");
+                 PreparedStatement trimPages = writeConnection.prepareStatement(
+                         "DELETE FROM pages WHERE uuid = ? AND page >= ?");
+                 PreparedStatement upsertPage = writeConnection.prepareStatement(
+                         "INSERT OR REPLACE INTO pages (uuid, page, data) VALUES (?, ?, ?)");
+                 PreparedStatement deletePage = writeConnection.prepareStatement(
+                         "DELETE FROM pages WHERE uuid = ? AND page = ?")) {
+
+                for (BackpackSnapshot snapshot : snapshots) {
+                    String uuid = snapshot.playerId().toString();
+                    List<ItemStack[]> pages = snapshot.pages();
+
+                    Map<Integer, byte[]> encodedPages = new HashMap<>();
+                    BitSet dirty = snapshot.dirtyPages();
+                    try {
+                        for (int page = dirty.nextSetBit(0); page >= 0 && page < pages.size(); page = dirty.nextSetBit(page + 1)) {
+                            ItemStack[] slots = pages.get(page);
+                            encodedPages.put(page, isEmpty(slots) ? null : BackpackCodec.encode(List.<ItemStack[]>of(slots)));
+                        }
+                    } catch (IOException e) {
+                        plugin.getLogger().log(Level.SEVERE, "Error encoding backpack data for player " + uuid, e);
+                        failed.add(snapshot.playerId());
+                        continue;
+                    }
+
+                    upsertBackpack.setString(1, uuid);
+                    upsertBackpack.setString(2, snapshot.playerName());
+                    upsertBackpack.setInt(3, pages.size());
+                    upsertBackpack.addBatch();
+
+                    trimPages.setString(1, uuid);
+                    trimPages.setInt(2, pages.size());
+                    trimPages.addBatch();
+
+                    for (Map.Entry<Integer, byte[]> page : encodedPages.entrySet()) {
+                        if (page.getValue() == null) {
+                            deletePage.setString(1, uuid);
+                            deletePage.setInt(2, page.getKey());
+                            deletePage.addBatch();
+                        } else {
+                            upsertPage.setString(1, uuid);
+                            upsertPage.setInt(2, page.getKey());
+                            upsertPage.setBytes(3, page.getValue());
+                            upsertPage.addBatch();
+                        }
+                    }
+                }
+
+                upsertBackpack.executeBatch();
+                trimPages.executeBatch();
+                deletePage.executeBatch();
+                upsertPage.executeBatch();
+                writeConnection.commit();
+            } catch (SQLException e) {
+                plugin.getLogger().log(Level.SEVERE, "Error saving " + snapshots.size() + " backpacks to database", e);
+                rollback();
+                for (BackpackSnapshot snapshot : snapshots) {
+                    failed.add(snapshot.playerId());
+                }
+            }
+        }
+        return failed;
+    }
+
+    /* OVERFLOW */
+
+    @Override
+    @Nonnull public List<ItemStack> peekOverflowItems(@Nonnull UUID playerId) {
+        List<ItemStack> overflowItems = new ArrayList<>(fallback.peekOverflowItems(playerId));
+
+        synchronized (readConnection) {
+            try (PreparedStatement select = readConnection.prepareStatement(
+                    "SELECT data FROM overflow WHERE uuid = ? ORDER BY id")) {
+                select.setString(1, playerId.toString());
+                try (ResultSet result = select.executeQuery()) {
+                    while (result.next()) {
+                        overflowItems.add(ItemCodec.decode(result.getBytes(1)));
+                    }
+                }
+            } catch (SQLException | IOException e) {
+                plugin.getLogger().log(Level.SEVERE, "Error loading overflow items for " + playerId, e);
+            }
+        }
+        return overflowItems;
+    }
+
+    @Override
+    public void appendOverflowItems(@Nonnull UUID playerId, @Nonnull List<ItemStack> overflowItems) {
+        insertOverflowItems(playerId, overflowItems, false);
+    }
+
+    /**
+     * The items replace the file store's overflow as well, since {@link #peekOverflowItems} returns both.
+     */
+    @Override
+    public void saveOverflowItems(@Nonnull UUID playerId, @Nonnull List<ItemStack> overflowItems) {
+        if (insertOverflowItems(playerId, overflowItems, true)) {
+            fallback.deleteOverflowItems(playerId);
+        }
+    }
+
+    /**
+     * @return whether any items were written
+     */
+    private boolean insertOverflowItems(UUID playerId, List<ItemStack> overflowItems, boolean replace) {
+        if (overflowItems.isEmpty()) return false;
+
+        synchronized (writeConnection) {
+            try (PreparedStatement delete = writeConnection.prepareStatement(
+                    "DELETE FROM overflow WHERE uuid = ?");
+                 PreparedStatement insert = writeConnection.prepareStatement(
+                         "INSERT INTO overflow (uuid, data) VALUES (?, ?)")) {
+                if (replace) {
+                    delete.setString(1, playerId.toString());
+                    delete.executeUpdate();
+                }
+
+                for (ItemStack item : overflowItems) {
+                    insert.setString(1, playerId.toString());
+                    insert.setBytes(2, ItemCodec.encode(item));
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+                writeConnection.commit();
+                return true;
+            } catch (SQLException | IOException e) {
+                plugin.getLogger().log(Level.SEVERE, "Error saving overflow items for " + playerId, e);
+                rollback();
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public void deleteOverflowItems(@Nonnull UUID playerId) {
+        fallback.deleteOverflowItems(playerId);
+        executeForPlayer("DELETE FROM overflow WHERE uuid = ?", playerId);
+    }
+
+    /* PLAYERS */
+
+    @Override
+    @Nonnull public Collection<UUID> listPlayers() {
+        Set<UUID> players = new HashSet<>();
+        synchronized (readConnection) {
+            try (Statement statement = readConnection.createStatement();
+                 ResultSet result = statement.executeQuery("SELECT uuid FROM backpacks")) {
+                while (result.next()) {
+                    players.add(UUID.fromString(result.getString(1)));
+                }
+            } catch (SQLException e) {
+                plugin.getLogger().log(Level.SEVERE, "Error listing backpacks in database", e);
+            }
+        }
+        return players;
+    }
+
+    @Override
+    public void delete(@Nonnull UUID playerId) {
+        executeForPlayer("DELETE FROM pages WHERE uuid = ?", playerId);
+        executeForPlayer("DELETE FROM backpacks WHERE uuid = ?", playerId);
+        executeForPlayer("DELETE FROM overflow WHERE uuid = ?", playerId);
+        fallback.delete(playerId);
+    }
+
+    /* MAINTENANCE */
+
+    @Override
+    @Nonnull public List<BackupSource> getBackupSources() {
+        List<BackupSource> sources = new ArrayList<>();
+        // Recent commits sit in the WAL file until a checkpoint, so the database file alone cannot tell what changed
+        sources.add(BackupSource.alwaysCopied(databaseFile.getName(), databaseFile, this::copyDatabase));
+        sources.addAll(fallback.getBackupSources());
+        return sources;
+    }
+
+    private void copyDatabase(Path target) throws IOException {
+        synchronized (writeConnection) {
+            try (Statement statement = writeConnection.createStatement()) {
+                writeConnection.setAutoCommit(true);
+                Files.deleteIfExists(target);
+                statement.execute("VACUUM INTO '" + target.toAbsolutePath().toString().replace("'", "''") + "'");
+            } catch (SQLException e) {
+                throw new IOException("Error copying database", e);
+            } finally {
+                try {
+                    writeConnection.setAutoCommit(false);
+                } catch (SQLException e) {
+                    plugin.getLogger().log(Level.WARNING, "Failed to restore database transaction mode", e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        try {
+            synchronized (readConnection) {
+                readConnection.close();
+            }
+            synchronized (writeConnection) {
+                writeConnection.close();
+            }
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.WARNING, "Error closing database", e);
+        }
+        fallback.shutdown();
+    }
+
+    /* HELPER */
+
+    private void executeForPlayer(String sql, UUID playerId) {
+        synchronized (writeConnection) {
+            try (PreparedStatement statement = writeConnection.prepareStatement(sql)) {
+                statement.setString(1, playerId.toString());
+                statement.executeUpdate();
+                writeConnection.commit();
+            } catch (SQLException e) {
+                plugin.getLogger().log(Level.SEVERE, "Error updating database for player " + playerId, e);
+                rollback();
+            }
+        }
+    }
+
+    private void rollback() {
+        try {
+            writeConnection.rollback();
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.WARNING, "Failed to roll back database transaction", e);
+        }
+    }
+
+    private static boolean isEmpty(ItemStack[] slots) {
+        for (ItemStack item : slots) {
+            if (item != null) return false;
+        }
+        return true;
+    }
+}
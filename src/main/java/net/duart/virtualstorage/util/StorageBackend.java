@@ -0,0 +1,78 @@
+package net.duart.virtualstorage.util;
+
+import org.bukkit.inventory.ItemStack;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.BiPredicate;
+
+/**
+ * Persistence for backpacks and their overflow items.
+ * <p>
+ * Every method may block on I/O and must not be called from the server thread.
+ */
+public interface StorageBackend {
+
+    /**
+     * @return the stored backpack, or {@code null} when the player has nothing stored
+     * @throws java.io.UncheckedIOException when the stored backpack cannot be read
+     */
+    @Nullable BackpackData load(@Nonnull UUID playerId, @Nullable String playerName);
+
+    /**
+     * @return {@code false} when the backpack could not be written; the error is logged
+     */
+    boolean save(@Nonnull BackpackSnapshot snapshot);
+
+    /**
+     * Saves several backpacks at once. Backends that support it write them in a single batch.
+     *
+     * @return the players whose backpacks could not be written
+     */
+    @Nonnull default Set<UUID> saveAll(@Nonnull Collection<BackpackSnapshot> snapshots) {
+        Set<UUID> failed = new HashSet<>();
+        for (BackpackSnapshot snapshot : snapshots) {
+            if (!save(snapshot)) failed.add(snapshot.playerId());
+        }
+        return failed;
+    }
+
+    /**
+     * Reads stored backpacks in random order until {@code visitor} returns false. Nothing is imported, repaired or
+     * scheduled, and backpacks that cannot be read are skipped.
+     */
+    void sampleBackpacks(@Nonnull BiPredicate<UUID, BackpackData> visitor);
+
+    /**
+     * Returns the stored overflow items without removing them.
+     */
+    @Nonnull List<ItemStack> peekOverflowItems(@Nonnull UUID playerId);
+
+    /**
+     * Adds items to the player's overflow without reading or rewriting what is already stored.
+     */
+    void appendOverflowItems(@Nonnull UUID playerId, @Nonnull List<ItemStack> overflowItems);
+
+    /**
+     * Replaces the player's overflow with the given items.
+     */
+    void saveOverflowItems(@Nonnull UUID playerId, @Nonnull List<ItemStack> overflowItems);
+
+    void deleteOverflowItems(@Nonnull UUID playerId);
+
+    @Nonnull Collection<UUID> listPlayers();
+
+    void delete(@Nonnull UUID playerId);
+
+    /**
+     * Lists the files a backup of this backend consists of.
+     */
+    @Nonnull List<BackupSource> getBackupSources();
+
+    default void shutdown() { }
+}